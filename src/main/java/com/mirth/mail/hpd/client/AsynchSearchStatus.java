@@ -14,7 +14,122 @@
 package com.mirth.mail.hpd.client;
 
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Progress of a search started with HPDClient.searchAsynch().  HPDClient.getAsynchSearchStatus() hands out a snapshot,
+ * so poll it again to see further progress.
+ */
 public class AsynchSearchStatus implements Serializable {
+    private static final long serialVersionUID = 4460431873155290137L;
+
+    public enum DirectorySearchState {PENDING, RUNNING, DONE, FAILED};
+
+    private String searchRequestId;
+    private long startTime;                 //When the search was submitted
+    private Long endTime;                   //When the search finished.  null while it's still running
+    private LinkedHashMap<String, DirectorySearchState> directoryStates = new LinkedHashMap<String, DirectorySearchState>();
+    private LinkedHashMap<String, Integer> directoryEntityCounts = new LinkedHashMap<String, Integer>();
+    private HPDSearchResult result;         //The federated result once the search is complete
+
+    public AsynchSearchStatus() {
+    }
+
+    AsynchSearchStatus(String searchRequestId, HPDSearchRequest searchRequest) {
+        this.searchRequestId = searchRequestId;
+        this.startTime = System.currentTimeMillis();
+        if (searchRequest.getDirectoryIds() != null) {
+            for (String directoryId : searchRequest.getDirectoryIds()) {
+                directoryStates.put(directoryId, DirectorySearchState.PENDING);
+            }
+        }
+    }
+
+    synchronized void directoryStarted(String directoryId) {
+        //A directory that was cancelled at the deadline before it got a thread can still start afterwards.  It stays FAILED.
+        DirectorySearchState state = directoryStates.get(directoryId);
+        if (state == null || state == DirectorySearchState.PENDING) {
+            directoryStates.put(directoryId, DirectorySearchState.RUNNING);
+        }
+    }
+
+    synchronized void directoryFinished(String directoryId, HPDSearchResult directoryResult) {
+        directoryStates.put(directoryId, directoryResult.getResultCode() < 0 ? DirectorySearchState.FAILED : DirectorySearchState.DONE);
+        directoryEntityCounts.put(directoryId, directoryResult.getEntities().size());
+    }
+
+    //The first finish sticks, so a search the client gave up on at shutdown stays that way
+    synchronized void searchFinished(HPDSearchResult result) {
+        if (endTime != null) {
+            return;
+        }
+        this.result = result;
+        this.endTime = System.currentTimeMillis();
+    }
+
+    synchronized AsynchSearchStatus copy() {
+        AsynchSearchStatus copy = new AsynchSearchStatus();
+        copy.searchRequestId = searchRequestId;
+        copy.startTime = startTime;
+        copy.endTime = endTime;
+        copy.directoryStates = new LinkedHashMap<String, DirectorySearchState>(directoryStates);
+        copy.directoryEntityCounts = new LinkedHashMap<String, Integer>(directoryEntityCounts);
+        //The caller gets its own result, same as from a synchronous search
+        copy.result = result == null ? null : new HPDSearchResult(result);
+        return copy;
+    }
+
+    //Has the search been finished for longer than the given time to live
+    synchronized boolean isExpired(long now, long ttlMS) {
+        return endTime != null && now - endTime > ttlMS;
+    }
+
+    public String getSearchRequestId() {
+        return searchRequestId;
+    }
+
+    public boolean isComplete() {
+        return endTime != null;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public Long getEndTime() {
+        return endTime;
+    }
+
+    //How long the search has been running, or how long it took if it's complete
+    public long getElapsedMS() {
+        return (endTime != null ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public Map<String, DirectorySearchState> getDirectoryStates() {
+        return directoryStates;
+    }
+
+    public DirectorySearchState getDirectoryState(String directoryId) {
+        return directoryStates.get(directoryId);
+    }
+
+    //Entities returned so far by the given directory.  0 until that directory finishes.
+    public int getDirectoryEntityCount(String directoryId) {
+        Integer entityCount = directoryEntityCounts.get(directoryId);
+        return entityCount == null ? 0 : entityCount;
+    }
+
+    //Entities returned so far by all the directories that have finished
+    public int getEntityCount() {
+        int entityCount = 0;
+        for (Integer directoryEntityCount : directoryEntityCounts.values()) {
+            entityCount += directoryEntityCount;
+        }
+        return entityCount;
+    }
 
-}
\ No newline at end of file
+    public HPDSearchResult getResult() {
+        return result;
+    }
+}
@@ -36,4 +36,11 @@ public class Constants {
     //DSML Constants
     public static final String DSML_ERROR_RESPONSE_RESULT      = "errorResponse";
     public static final String DSML_REQUEST_MALFORMED_RESULT   = "malformedRequest";
+
+    //LDAP resultCodes we act on in a searchResultDone
+    public static final int    LDAP_SUCCESS                    = 0;
+    public static final int    LDAP_TIME_LIMIT_EXCEEDED        = 3;
+    public static final int    LDAP_SIZE_LIMIT_EXCEEDED        = 4;
+    public static final int    LDAP_ADMIN_LIMIT_EXCEEDED       = 11;
+    public static final int    LDAP_NO_SUCH_OBJECT             = 32;
 }
\ No newline at end of file
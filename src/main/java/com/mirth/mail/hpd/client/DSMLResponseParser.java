@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.exceptions.MalformedOrInvalidHPDRequestResponse;
+import com.mirth.mail.hpd.models.HPDEntryRecord;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming (StAX) parser for DSML batchResponses.  It reads straight from the HTTP response stream and
+ * hands each <code>searchResultEntry</code> to an {@link EntryHandler} as soon as the entry closes, so a large
+ * response is never held in memory as a String or DOM.
+ *
+ * The parser is deliberately tolerant of the variations we see from remote HPDs:  element prefixes are ignored
+ * (dsml:, undeclared or otherwise), <code>attribute</code> is accepted as an alias for <code>attr</code>, and any
+ * SOAP envelope around the batchResponse is simply skipped over.
+ */
+public class DSMLResponseParser {
+
+    private static final String SEARCH_RESPONSE = "searchResponse";
+    private static final String SEARCH_RESULT_ENTRY = "searchResultEntry";
+    private static final String SEARCH_RESULT_DONE = "searchResultDone";
+    private static final String RESULT_CODE = "resultCode";
+    private static final String ERROR_MESSAGE = "errorMessage";
+    private static final String REQUEST_ID = "requestID";
+    private static final String ATTR = "attr";
+    private static final String ATTRIBUTE = "attribute";
+    private static final String VALUE = "value";
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    /**
+     * Receives each searchResultEntry as it is parsed, along with the requestID of the searchRequest it answers (taken from
+     * the entry or the searchResponse around it).  The requestID is null if the server didn't send one.
+     */
+    public interface EntryHandler {
+
+        void handleEntry(String requestId, HPDEntryRecord entry) throws MalformedOrInvalidHPDRequestResponse;
+
+        /**
+         * Called at the searchResultDone that ends each searchResponse with its LDAP resultCode (see the LDAP_ constants),
+         * eg sizeLimitExceeded when the entries before it aren't all there were.  The errorMessage is null if none was sent.
+         */
+        void handleResultDone(String requestId, int resultCode, String errorMessage) throws MalformedOrInvalidHPDRequestResponse;
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        //Match on local names ourselves so a server using an undeclared dsml: prefix doesn't break the parse
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * Parses the response from the stream.  If <code>charset</code> is null the encoding is taken from the XML declaration.
+     */
+    public void parse(InputStream responseStream, String charset, EntryHandler handler) throws MalformedOrInvalidHPDRequestResponse, IOException {
+        try {
+            XMLStreamReader reader = charset == null ? inputFactory.createXMLStreamReader(responseStream) : inputFactory.createXMLStreamReader(responseStream, charset);
+            parse(reader, handler);
+        } catch (XMLStreamException xse) {
+            //Reading from the socket happens inside the parser, so surface timeouts and other I/O failures as such
+            if (xse.getNestedException() instanceof IOException) {
+                throw (IOException) xse.getNestedException();
+            }
+            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: " + xse.getMessage());
+        }
+    }
+
+    public void parse(Reader responseReader, EntryHandler handler) throws MalformedOrInvalidHPDRequestResponse {
+        try {
+            parse(inputFactory.createXMLStreamReader(responseReader), handler);
+        } catch (XMLStreamException xse) {
+            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: " + xse.getMessage());
+        }
+    }
+
+    private void parse(XMLStreamReader reader, EntryHandler handler) throws XMLStreamException, MalformedOrInvalidHPDRequestResponse {
+        String responseRequestId = null;
+        String entryRequestId = null;
+        HPDEntryRecord entry = null;
+        List<String> attrValues = null;
+        String doneRequestId = null;
+        Integer doneResultCode = null;
+        String doneErrorMessage = null;
+        boolean inResultDone = false;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String elementName = localName(reader.getLocalName());
+                    if (Constants.DSML_ERROR_RESPONSE_RESULT.equals(elementName)) {
+                        //Did the DSML request fail withe an errorResponse due to formatting, structure, etc issues
+                        String errorType = attributeValue(reader, "type");
+                        if (errorType != null && errorType.equals(Constants.DSML_REQUEST_MALFORMED_RESULT)) {
+                            throw new MalformedOrInvalidHPDRequestResponse("The DSML request that was submitted was malformed.");
+                        } else {
+                            throw new MalformedOrInvalidHPDRequestResponse("Unexpected DSML error type encountered.  Type=" + errorType);
+                        }
+                    } else if (SEARCH_RESPONSE.equals(elementName)) {
+                        responseRequestId = attributeValue(reader, REQUEST_ID);
+                    } else if (SEARCH_RESULT_ENTRY.equals(elementName)) {
+                        entryRequestId = attributeValue(reader, REQUEST_ID);
+                        if (entryRequestId == null) {
+                            entryRequestId = responseRequestId;
+                        }
+                        String entryDN = attributeValue(reader, "dn");
+                        if (entryDN == null) {
+                            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: searchResultEntry with no dn.");
+                        }
+                        entry = new HPDEntryRecord(entryDN);
+                    } else if (entry != null && (ATTR.equals(elementName) || ATTRIBUTE.equals(elementName))) {
+                        //Sometimes we get an attr with no name.  Skip those.
+                        String attrName = attributeValue(reader, "name");
+                        attrValues = attrName == null ? null : entry.addAttr(attrName);
+                    } else if (attrValues != null && VALUE.equals(elementName)) {
+                        attrValues.add(reader.getElementText());
+                    } else if (SEARCH_RESULT_DONE.equals(elementName)) {
+                        inResultDone = true;
+                        doneRequestId = attributeValue(reader, REQUEST_ID);
+                        if (doneRequestId == null) {
+                            doneRequestId = responseRequestId;
+                        }
+                        doneResultCode = null;
+                        doneErrorMessage = null;
+                    } else if (inResultDone && RESULT_CODE.equals(elementName)) {
+                        String code = attributeValue(reader, "code");
+                        try {
+                            doneResultCode = code == null ? null : Integer.valueOf(code.trim());
+                        } catch (NumberFormatException nfe) {
+                            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: searchResultDone with resultCode '" + code + "'.");
+                        }
+                    } else if (inResultDone && ERROR_MESSAGE.equals(elementName)) {
+                        doneErrorMessage = reader.getElementText();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String elementName = localName(reader.getLocalName());
+                    if (SEARCH_RESULT_ENTRY.equals(elementName) && entry != null) {
+                        handler.handleEntry(entryRequestId, entry);
+                        entry = null;
+                    } else if (ATTR.equals(elementName) || ATTRIBUTE.equals(elementName)) {
+                        attrValues = null;
+                    } else if (SEARCH_RESULT_DONE.equals(elementName) && inResultDone) {
+                        if (doneResultCode == null) {
+                            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: searchResultDone with no resultCode.");
+                        }
+                        handler.handleResultDone(doneRequestId, doneResultCode, doneErrorMessage);
+                        inResultDone = false;
+                    } else if (SEARCH_RESPONSE.equals(elementName)) {
+                        responseRequestId = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String localName(String name) {
+        int prefixEnd = name.indexOf(':');
+        return prefixEnd < 0 ? name : name.substring(prefixEnd + 1);
+    }
+
+    private static String attributeValue(XMLStreamReader reader, String attributeName) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (attributeName.equals(localName(reader.getAttributeLocalName(i)))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.models.HPDEntityModel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A federated search in flight, as returned by HPDClient.searchHPDAsync().  There's a future for the merged result and
+ * one for each directory being searched.  Directory results are merged in the order they complete, and any directory
+ * still running at the federated search deadline is cancelled and reported as a timeout.
+ *
+ * The futures handed out are the caller's own, so completing one can't change the search.  Cancelling the merged
+ * result's future cancels the search, and cancelling a directory's cancels that directory's search.
+ *
+ * Listener calls are made in order, one at a time, on the callback executor rather than on the thread that finished a
+ * directory, and never while the merge lock is held.
+ */
+public class HPDAsyncSearch {
+
+    final static Logger log = Logger.getLogger(HPDAsyncSearch.class.getName());
+
+    private final HPDSearchRequest searchRequest;
+    private final long timeoutMS;
+    private final AsynchSearchStatus status;
+    private final HPDSearchListener listener;
+    private final Executor listenerCalls;      //Runs the listener calls one at a time, in the order they were made.  null without a listener.
+    private final HPDSearchFuture<HPDSearchResult> result = new HPDSearchFuture<HPDSearchResult>();
+    private final LinkedHashMap<String, HPDSearchFuture<HPDSearchResult>> directoryResults = new LinkedHashMap<String, HPDSearchFuture<HPDSearchResult>>();
+    private final CompletableFuture<HPDSearchResult> callerResult;
+    private final LinkedHashMap<String, CompletableFuture<HPDSearchResult>> callerDirectoryResults = new LinkedHashMap<String, CompletableFuture<HPDSearchResult>>();
+
+    //Guarded by this while directories are being merged
+    private final HPDSearchResult federatedResult = new HPDSearchResult();
+    private final RoundRobinChain<HPDEntityModel> chain = new RoundRobinChain<HPDEntityModel>();
+    private int directoriesRemaining;
+    private int entitiesPublished;
+
+    HPDAsyncSearch(HPDSearchRequest searchRequest, long timeoutMS, AsynchSearchStatus status, HPDSearchListener listener, Executor callbackExecutor) {
+        this.searchRequest = searchRequest;
+        this.timeoutMS = timeoutMS;
+        this.status = status;
+        this.listener = listener;
+        this.listenerCalls = listener == null ? null : new SerialExecutor(callbackExecutor);
+        this.callerResult = new CallerFuture<HPDSearchResult>(result, new Runnable() {
+            @Override
+            public void run() {
+                cancel();
+            }
+        });
+    }
+
+    //A search that's already over before it started, such as one with no directories to search
+    static HPDAsyncSearch completed(HPDSearchRequest searchRequest, HPDSearchResult searchResult, HPDSearchListener listener, Executor callbackExecutor) {
+        HPDAsyncSearch asyncSearch = new HPDAsyncSearch(searchRequest, 0, null, listener, callbackExecutor);
+        asyncSearch.result.complete(searchResult);
+        asyncSearch.publishComplete(searchResult);
+        return asyncSearch;
+    }
+
+    void addDirectorySearch(String directoryId, final HPDSearchFuture<HPDSearchResult> directorySearch) {
+        directoryResults.put(directoryId, directorySearch);
+        callerDirectoryResults.put(directoryId, new CallerFuture<HPDSearchResult>(directorySearch, new Runnable() {
+            @Override
+            public void run() {
+                directorySearch.cancel(true);
+            }
+        }));
+    }
+
+    //Once every directory search has been added, hand them to the executor to run
+    void start(Executor executor) {
+        synchronized (this) {
+            directoriesRemaining = directoryResults.size();
+        }
+        if (directoryResults.isEmpty()) {
+            finish();
+            return;
+        }
+        for (final Map.Entry<String, HPDSearchFuture<HPDSearchResult>> directorySearch : directoryResults.entrySet()) {
+            directorySearch.getValue().whenComplete(new BiConsumer<HPDSearchResult, Throwable>() {
+                @Override
+                public void accept(HPDSearchResult searchResult, Throwable failure) {
+                    directoryFinished(directorySearch.getKey(), directorySearch.getValue());
+                }
+            });
+        }
+        for (HPDSearchFuture<HPDSearchResult> directorySearch : directoryResults.values()) {
+            executor.execute(directorySearch);
+        }
+    }
+
+    //Called when the federated search deadline passes
+    void cancelPendingDirectories() {
+        for (HPDSearchFuture<HPDSearchResult> directorySearch : directoryResults.values()) {
+            if (!directorySearch.isDone()) {
+                directorySearch.cancel(true);
+            }
+        }
+    }
+
+    private void directoryFinished(String directoryId, HPDSearchFuture<HPDSearchResult> directorySearch) {
+        HPDSearchResult searchResult;
+        if (directorySearch.isCancelled()) {
+            searchResult = new HPDSearchResult(HPDResult.HPD_DEADLINE_EXCEEDED, String.format("Search of directory '%s' did not complete within the federated search deadline of %sms.", directoryId, timeoutMS));
+        } else {
+            try {
+                searchResult = directorySearch.get();
+            } catch (ExecutionException ee) {
+                log.log(Level.SEVERE, "Search of directory " + directoryId + " failed", ee.getCause());
+                searchResult = new HPDSearchResult(HPDResult.HPD_RESPONSE_PARSE_ERROR, String.valueOf(ee.getCause()));
+            } catch (InterruptedException ie) {
+                //Can't happen, the search is done
+                Thread.currentThread().interrupt();
+                searchResult = new HPDSearchResult(HPDResult.HPD_RESPONSE_TIMEOUT, ie.getMessage());
+            }
+        }
+        if (status != null) {
+            status.directoryFinished(directoryId, searchResult);
+        }
+        boolean lastDirectory;
+        synchronized (this) {
+            federatedResult.updateHPDResult(directoryId, searchResult);
+            List<HPDEntityModel> entities = searchResult.getEntities();
+            if (entities != null && (! entities.isEmpty())) {
+                chain.addIterator(entities.iterator());
+            }
+            lastDirectory = --directoriesRemaining == 0;
+            //Queued while we hold the lock so the listener hears about directories in the order they were merged
+            publishDirectoryResult(directoryId, searchResult);
+        }
+        //Complete outside the lock since that runs whatever's been chained onto the future
+        if (lastDirectory) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        HPDSearchResult searchResult;
+        synchronized (this) {
+            List<HPDEntityModel> entities = chain.toList();
+            //Each directory was limited on its own, so trim the merged result back down to what was asked for
+            if (searchRequest.getResultSizeLimit() > 0 && entities.size() > searchRequest.getResultSizeLimit()) {
+                entities = new ArrayList<HPDEntityModel>(entities.subList(0, searchRequest.getResultSizeLimit()));
+                federatedResult.setTruncated(true);
+            }
+            federatedResult.setEntities(entities);
+            searchResult = federatedResult;
+            publishComplete(searchResult);
+        }
+        result.complete(searchResult);
+    }
+
+    //Caller holds the lock
+    private void publishDirectoryResult(final String directoryId, final HPDSearchResult directoryResult) {
+        if (listener == null) {
+            return;
+        }
+        //Counted off here rather than in the listener call so the limit holds across directories however the calls are scheduled
+        final List<HPDEntityModel> entities = new ArrayList<HPDEntityModel>();
+        if (directoryResult.getEntities() != null) {
+            for (HPDEntityModel entity : directoryResult.getEntities()) {
+                if (searchRequest.getResultSizeLimit() > 0 && entitiesPublished >= searchRequest.getResultSizeLimit()) {
+                    break;
+                }
+                entitiesPublished++;
+                entities.add(entity);
+            }
+        }
+        listenerCalls.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onDirectoryResult(directoryId, directoryResult);
+                    for (HPDEntityModel entity : entities) {
+                        listener.onEntity(entity);
+                    }
+                } catch (RuntimeException re) {
+                    log.log(Level.WARNING, "HPDSearchListener failed handling the result from directory " + directoryId, re);
+                }
+            }
+        });
+    }
+
+    private void publishComplete(final HPDSearchResult searchResult) {
+        if (listener == null) {
+            return;
+        }
+        listenerCalls.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onComplete(searchResult);
+                } catch (RuntimeException re) {
+                    log.log(Level.WARNING, "HPDSearchListener failed handling the completed search", re);
+                }
+            }
+        });
+    }
+
+    public HPDSearchRequest getSearchRequest() {
+        return searchRequest;
+    }
+
+    //The merged result of all the directories
+    public CompletableFuture<HPDSearchResult> getResult() {
+        return callerResult;
+    }
+
+    //The result from each directory as it was before merging, keyed by directory id
+    public Map<String, CompletableFuture<HPDSearchResult>> getDirectoryResults() {
+        return Collections.unmodifiableMap(callerDirectoryResults);
+    }
+
+    public CompletableFuture<HPDSearchResult> getDirectoryResult(String directoryId) {
+        return callerDirectoryResults.get(directoryId);
+    }
+
+    //Abandons the search.  Directory searches still running are interrupted.
+    public void cancel() {
+        result.cancel(false);
+        cancelPendingDirectories();
+    }
+
+    //Completes along with one of our futures but is otherwise the caller's.  Cancelling it is passed on to onCancel.
+    private static class CallerFuture<V> extends CompletableFuture<V> {
+
+        private final Runnable onCancel;
+
+        CallerFuture(CompletableFuture<V> source, Runnable onCancel) {
+            this.onCancel = onCancel;
+            source.whenComplete(new BiConsumer<V, Throwable>() {
+                @Override
+                public void accept(V value, Throwable failure) {
+                    if (failure != null) {
+                        completeExceptionally(failure);
+                    } else {
+                        complete(value);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                onCancel.run();
+            }
+            return cancelled;
+        }
+    }
+
+    //Runs tasks one at a time, in the order they were given, on another executor.  If that executor won't take them, eg
+    //because the client has been shut down, they get a thread of their own, since the caller may be holding a lock.
+    private static class SerialExecutor implements Executor {
+
+        private final Executor executor;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean draining;   //Guarded by tasks
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            Runnable drain = new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException ree) {
+                Thread drainThread = new Thread(drain, "hpd-search-callback");
+                drainThread.setDaemon(true);
+                drainThread.start();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded cache where each entry also has its own time to live.  When it's full the least recently used entry
+ * makes room, and expired entries are dropped when they're next looked up.  A cache can be told to keep expired entries
+ * instead, for callers that would rather have a stale value than none; those go when they're the least recently used or
+ * are purged, and each lookup says how stale is too stale.  Values are handed out as
+ * stored, so callers that don't want theirs changed should store and hand out copies.
+ */
+class HPDCache<V> {
+
+    private static class CachedValue<V> {
+        final V value;
+        final long expiryTime;
+
+        CachedValue(V value, long expiryTime) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final int maxEntries;
+    private final boolean keepExpired;      //Whether expired entries are left for getStale() rather than dropped
+    private final LinkedHashMap<String, CachedValue<V>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long staleHits;
+
+    HPDCache(int maxEntries) {
+        this(maxEntries, false);
+    }
+
+    HPDCache(int maxEntries, boolean keepExpired) {
+        this.maxEntries = maxEntries;
+        this.keepExpired = keepExpired;
+        //Access ordered, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, CachedValue<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue<V>> eldest) {
+                if (size() > HPDCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized V get(String key) {
+        CachedValue<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiryTime <= System.currentTimeMillis()) {
+            if (!keepExpired) {
+                entries.remove(key);
+                expirations++;
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    //An entry that has expired, but not by more than maxStaleMS.  Meant for after get() comes back empty.
+    synchronized V getStale(String key, long maxStaleMS) {
+        CachedValue<V> entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.expiryTime > now || isTooStale(entry, now, maxStaleMS)) {
+            return null;
+        }
+        staleHits++;
+        return entry.value;
+    }
+
+    private static boolean isTooStale(CachedValue<?> entry, long now, long maxStaleMS) {
+        return entry.expiryTime + maxStaleMS <= now;
+    }
+
+    synchronized void put(String key, V value, long ttlMS) {
+        entries.put(key, new CachedValue<V>(value, System.currentTimeMillis() + ttlMS));
+    }
+
+    //Adds an entry brought back from elsewhere, such as disk, with the expiry it had there.  One that's already cached
+    //is newer, so it's kept instead.
+    synchronized void restore(String key, V value, long expiryTime) {
+        if (!entries.containsKey(key)) {
+            entries.put(key, new CachedValue<V>(value, expiryTime));
+        }
+    }
+
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    //Drops every entry that has been expired for longer than maxStaleMS, so is too old even to be handed out stale
+    synchronized void purgeExpired(long maxStaleMS) {
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedValue<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (isTooStale(it.next(), now, maxStaleMS)) {
+                it.remove();
+                expirations++;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        expirations = 0;
+        staleHits = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized HPDCacheStats getStats() {
+        return new HPDCacheStats(hits, misses, evictions, expirations, staleHits, entries.size());
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of how an HPDCache has been doing since it was created or last cleared.
+ */
+public class HPDCacheStats implements Serializable {
+    private static final long serialVersionUID = 6203948114305742316L;
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;           //Entries dropped to make room
+    private final long expirations;         //Entries dropped because they outlived their TTL
+    private final long staleHits;           //Expired entries handed out anyway, for caches that allow it.  Also counted as misses.
+    private final int size;
+
+    HPDCacheStats(long hits, long misses, long evictions, long expirations, long staleHits, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.staleHits = staleHits;
+        this.size = size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    //Fraction of lookups that were hits, 0 if there haven't been any
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%s misses=%s evictions=%s expirations=%s staleHits=%s size=%s", hits, misses, evictions, expirations, staleHits, size);
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+/**
+ * Tracks whether an HPD is answering.  After enough consecutive failures to reach it the circuit opens and searches of
+ * that HPD fail straight away with HPD_CIRCUIT_OPEN instead of waiting out a connect timeout.  While it's open HPDClient
+ * probes the HPD in the background, and the first probe that gets an answer closes it again.
+ */
+public class HPDCircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN};
+
+    private final String instanceId;
+    private final int failureThreshold;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedTime;                //When the circuit last opened
+    private String lastFailureMsg;
+    private int probeGeneration;            //The chain of background probes that's allowed to run.  Any older one stops.
+
+    HPDCircuitBreaker(String instanceId, int failureThreshold) {
+        this.instanceId = instanceId;
+        this.failureThreshold = failureThreshold;
+    }
+
+    //Only failures to reach the HPD count.  An HPD that answers with an error is up, it just didn't like the search.
+    static boolean isUnreachable(int resultCode) {
+        switch (resultCode) {
+            case HPDResult.HPD_CONNECT_ERROR:
+            case HPDResult.HPD_CONNECT_TIMEOUT:
+            case HPDResult.HPD_RESPONSE_TIMEOUT:
+            case HPDResult.HPD_UNKNOWN_HOST:
+            case HPDResult.HPD_CONNECTION_REFUSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //Can a search go to this HPD.  Only the background probe gets through while the circuit isn't closed.
+    synchronized boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    //Returns true if this result just opened the circuit, in which case the caller should start probing
+    synchronized boolean recordResult(HPDResult result) {
+        if (result.getResultCode() == HPDResult.HPD_DEADLINE_EXCEEDED) {
+            //The search ran out of time, not the HPD.  That's neither a failure nor a sign it's back.
+            return false;
+        }
+        if (!isUnreachable(result.getResultCode())) {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+            return false;
+        }
+        consecutiveFailures++;
+        lastFailureMsg = result.getResultMsg();
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedTime = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    //Starts a new chain of background probes, which replaces any that's still going.  Returns its generation, which
+    //each of its probes passes to probeStarted().
+    synchronized int newProbeChain() {
+        return ++probeGeneration;
+    }
+
+    //Returns false if the probe should stop, because the circuit closed or a newer chain of probes replaced its own
+    synchronized boolean probeStarted(int generation) {
+        if (generation != probeGeneration || state == State.CLOSED) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    //Returns true if the probe closed the circuit
+    synchronized boolean probeFinished(HPDResult result) {
+        //A probe that didn't get an answer in time hasn't shown the HPD is back
+        if (isUnreachable(result.getResultCode()) || result.getResultCode() == HPDResult.HPD_DEADLINE_EXCEEDED) {
+            lastFailureMsg = result.getResultMsg();
+            if (state == State.HALF_OPEN) {
+                state = State.OPEN;
+            }
+            return false;
+        }
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+        return true;
+    }
+
+    synchronized void reset() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+        //Any probe still waiting to run stops, even if the circuit has opened again by the time it does
+        probeGeneration++;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    //When the circuit last opened, or 0 if it never has
+    public synchronized long getOpenedTime() {
+        return openedTime;
+    }
+
+    public synchronized String getLastFailureMsg() {
+        return lastFailureMsg;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return instanceId + " " + state + " (" + consecutiveFailures + " consecutive failures)";
+    }
+}
@@ -15,6 +15,7 @@ package com.mirth.mail.hpd.client;
 
 import com.mirth.mail.hpd.client.exceptions.HPDConnectionRefusedException;
 import com.mirth.mail.hpd.client.exceptions.HPDCertificateException;
+import com.mirth.mail.hpd.client.exceptions.HPDDeadlineExceededException;
 import com.mirth.mail.hpd.client.exceptions.HPDObjectWithNoUIDException;
 import com.mirth.mail.hpd.client.exceptions.HPDRequestTimeoutException;
 import com.mirth.mail.hpd.client.exceptions.HPDTLSException;
@@ -26,12 +27,12 @@ import com.mirth.mail.hpd.models.HPDBaseModel;
 import com.mirth.mail.hpd.models.HPDContactModel;
 import com.mirth.mail.hpd.models.HPDCredentialModel;
 import com.mirth.mail.hpd.models.HPDElectronicServiceModel;
+import com.mirth.mail.hpd.models.HPDEntryRecord;
 import com.mirth.mail.hpd.models.HPDInstanceModel;
 import com.mirth.mail.hpd.models.HPDEntityModel;
 import com.mirth.mail.hpd.models.HPDOrgToProvRelationshipModel;
 import com.thoughtworks.xstream.XStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,7 +41,6 @@ import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
@@ -51,36 +51,46 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.util.EntityUtils;
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 import sun.security.validator.ValidatorException;
 
 public class HPDClient {
@@ -90,6 +100,40 @@ public class HPDClient {
     private static HPDClientConfig config;
     private static final String PING_SEARCH_ORG_NAME = "Mercy Hospital";
     private static final int MIRTH_MAIL_HPD_STATUS_ACTIVE_ID = 24;
+    //Kept back from each directory's share of the search deadline so it can hand in what it has before it's cancelled
+    private static final long DEADLINE_RESERVE_MS = 100;
+    
+    private ExecutorService searchExecutor;
+    private ExecutorService enrichmentExecutor;
+    private ExecutorService asynchSearchExecutor;
+    private ExecutorService hedgeExecutor;
+    private ExecutorService callbackExecutor;
+    private ScheduledThreadPoolExecutor searchDeadlineTimer;
+    private final ConcurrentHashMap<String, AsynchSearchStatus> asynchSearches = new ConcurrentHashMap<String, AsynchSearchStatus>();
+    private final ConcurrentHashMap<String, HPDCircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, HPDCircuitBreaker>();
+    private final ConcurrentHashMap<String, HPDLatencyTracker> latencyTrackers = new ConcurrentHashMap<String, HPDLatencyTracker>();
+    private final ConcurrentHashMap<String, HPDHedgeBudget> hedgeBudgets = new ConcurrentHashMap<String, HPDHedgeBudget>();
+    private HPDCache<HPDSearchResult> resultCache;
+    private HPDCache<Boolean> negativeCache;
+    private final Set<String> resultRefreshes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());   //Result cache keys being refreshed
+    private final ConcurrentHashMap<String, HPDCache<HPDBaseModel>> entityCaches = new ConcurrentHashMap<String, HPDCache<HPDBaseModel>>();
+    private HPDEntityCacheStore entityCacheStore;
+    //Identical directory searches, and identical calls within them, that overlap share one answer when coalescing is on
+    private final HPDSingleFlight<HPDSearchResult> directorySearchFlights = new HPDSingleFlight<HPDSearchResult>() {
+        @Override
+        HPDSearchResult copy(HPDSearchResult result) {
+            return new HPDSearchResult(result);
+        }
+    };
+    private final HPDSingleFlight<ProcessedHPDResponseDoc> callFlights = new HPDSingleFlight<ProcessedHPDResponseDoc>() {
+        @Override
+        ProcessedHPDResponseDoc copy(ProcessedHPDResponseDoc response) {
+            return response.copy();
+        }
+    };
+    private volatile boolean shutdown;
+    private HPDConnectionManager connectionManager;
+    private final DSMLResponseParser responseParser = new DSMLResponseParser();
 
     public HPDClient() {
     }
@@ -219,12 +263,43 @@ public class HPDClient {
         return config.getInstances();
     }
 
-    public String searchAsynch(HPDSearchRequest request) {
-        return null;
+    //Starts the search in the background and returns the id to poll getAsynchSearchStatus() with
+    public String searchAsynch(final HPDSearchRequest request) {
+        evictExpiredAsynchSearches();
+        final String searchRequestId = UUID.randomUUID().toString();
+        AsynchSearchStatus status = new AsynchSearchStatus(searchRequestId, request);
+        asynchSearches.put(searchRequestId, status);
+        if (shutdown) {
+            status.searchFinished(newShutdownResult());
+            return searchRequestId;
+        }
+        try {
+            getAsynchSearchExecutor().execute(new AsynchSearchTask(request, status));
+        } catch (RejectedExecutionException ree) {
+            status.searchFinished(new HPDSearchResult(HPDResult.HPD_ASYNCH_SEARCH_REJECTED, "Too many asynch searches are already waiting to run.  Try again later."));
+        }
+        return searchRequestId;
+    }
+
+    private static HPDSearchResult newShutdownResult() {
+        return new HPDSearchResult(HPDResult.HPD_ASYNCH_SEARCH_REJECTED, "The HPD client was shut down before the search could run.");
     }
 
+    //A snapshot of how the search is going.  null if there's no such search or its result has expired.
     public AsynchSearchStatus getAsynchSearchStatus(String searchRequestId) {
-        return null;
+        evictExpiredAsynchSearches();
+        AsynchSearchStatus status = searchRequestId == null ? null : asynchSearches.get(searchRequestId);
+        return status == null ? null : status.copy();
+    }
+
+    private void evictExpiredAsynchSearches() {
+        long now = System.currentTimeMillis();
+        long ttlMS = config.getAsynchSearchResultTTLMS();
+        for (Iterator<AsynchSearchStatus> statuses = asynchSearches.values().iterator(); statuses.hasNext();) {
+            if (statuses.next().isExpired(now, ttlMS)) {
+                statuses.remove();
+            }
+        }
     }
 
     public static HPDClientConfig getConfig() {
@@ -247,85 +322,790 @@ public class HPDClient {
     public HPDResult pingInstanceById(String instanceId) {
         //Build a request that searches in the Org tree in the HPD for an org named "Mercy Hospital" 
         log.log(Level.INFO, "Pinging {0}...", instanceId);
-        HPDSearchRequest pingRequest = new HPDSearchRequest(instanceId, HPDSearchRequest.HPDSearchScope.OrgsOnly, HPDSearchRequest.HPDSearchMode.Equality, PING_SEARCH_ORG_NAME);
-        HPDSearchResult result = search(pingRequest);
+        //Straight to the HPD, like the circuit breaker's probe.  An answer from a cache, or from somebody else's search
+        //that happened to be in flight, says nothing about whether the HPD is up now.
+        HPDSearchResult result = searchDirectory(instanceId, newPingRequest(instanceId), System.currentTimeMillis() + config.getFederatedSearchTimeoutMS());
         return (HPDResult) result;
     }
 
+    private static HPDSearchRequest newPingRequest(String instanceId) {
+        return new HPDSearchRequest(instanceId, HPDSearchRequest.HPDSearchScope.OrgsOnly, HPDSearchRequest.HPDSearchMode.Equality, PING_SEARCH_ORG_NAME);
+    }
+
+    //The circuit breaker for a configured directory, or null if there's no directory with that id
+    public HPDCircuitBreaker getCircuitBreaker(String instanceId) {
+        HPDInstanceModel hpd = getInstanceById(instanceId);
+        if (hpd == null) {
+            return null;
+        }
+        String key = hpd.getId().toLowerCase();
+        HPDCircuitBreaker breaker = circuitBreakers.get(key);
+        if (breaker == null) {
+            HPDCircuitBreaker newBreaker = new HPDCircuitBreaker(hpd.getId(), config.getCircuitBreakerFailureThreshold());
+            breaker = circuitBreakers.putIfAbsent(key, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    //Circuit state of every configured directory, keyed by directory id
+    public Map<String, HPDCircuitBreaker.State> getDirectoryHealth() {
+        Map<String, HPDCircuitBreaker.State> health = new LinkedHashMap<String, HPDCircuitBreaker.State>();
+        for (HPDInstanceModel instance : config.getInstances()) {
+            health.put(instance.getId(), getCircuitBreaker(instance.getId()).getState());
+        }
+        return health;
+    }
+
+    //Starts sending searches to the directory again without waiting for the background probe to see it's back
+    public void resetCircuitBreaker(String instanceId) {
+        HPDCircuitBreaker breaker = getCircuitBreaker(instanceId);
+        if (breaker != null) {
+            breaker.reset();
+        }
+    }
+
+    //Searches the directory unless its circuit is open, so we don't spend a connect timeout on an HPD we know is down
+    private HPDSearchResult searchDirectoryIfAvailable(String instanceId, HPDSearchRequest searchRequest, long deadline) {
+        HPDCircuitBreaker breaker = getCircuitBreaker(instanceId);
+        if (breaker == null) {
+            return searchDirectory(instanceId, searchRequest, deadline);
+        }
+        if (!breaker.allowRequest()) {
+            return new HPDSearchResult(HPDResult.HPD_CIRCUIT_OPEN, String.format("HPD '%s' is not being searched after %s consecutive failures to reach it.  Last failure: %s",
+                    instanceId, breaker.getConsecutiveFailures(), breaker.getLastFailureMsg()));
+        }
+        HPDSearchResult result = searchDirectory(instanceId, searchRequest, deadline);
+        //A search cancelled at the federated deadline says nothing about the HPD
+        if (!Thread.currentThread().isInterrupted() && breaker.recordResult(result)) {
+            log.log(Level.WARNING, "Circuit opened for HPD {0} after {1} consecutive failures.  Last failure: {2}",
+                    new Object[]{instanceId, breaker.getConsecutiveFailures(), result.getResultMsg()});
+            scheduleProbe(breaker, breaker.newProbeChain());
+        }
+        return result;
+    }
+
+    //Answers from the result and negative caches when they're on and know this search of this directory, otherwise
+    //searches and remembers what comes back
+    private HPDSearchResult searchDirectoryCached(String instanceId, HPDSearchRequest searchRequest, long deadline) {
+        HPDInstanceModel hpd = getInstanceById(instanceId);
+        if (hpd == null) {
+            return searchDirectoryCoalesced(instanceId, searchRequest, deadline);
+        }
+        //Lookups by NPI, UID or Direct address that found nothing are remembered apart from the results, and not for as long.
+        //Keyed on all the criteria, since the search modes and limits still decide what a lookup can find.
+        String missKey = null;
+        if (config.isNegativeCache() && searchRequest.getIdentifierLookup() != null) {
+            missKey = hpd.getId().toLowerCase() + "|" + searchRequest.getCriteriaFingerprint();
+            if (getNegativeCache().get(missKey) != null) {
+                log.log(Level.FINE, "Lookup of {0} in HPD {1} answered from the negative cache", new Object[]{searchRequest.getIdentifierLookup(), instanceId});
+                return newNotFoundResult();
+            }
+        }
+        String key = null;
+        if (config.isResultCache()) {
+            key = hpd.getId().toLowerCase() + "|" + searchRequest.getCriteriaFingerprint();
+            HPDSearchResult cached = getResultCache().get(key);
+            if (cached != null) {
+                log.log(Level.FINE, "Search of HPD {0} answered from the result cache", instanceId);
+                //Copies both ways, so nothing a caller does to its result can reach what's cached
+                return new HPDSearchResult(cached);
+            }
+            //A stale answer now beats a fresh one after waiting on a slow HPD.  The refresh keeps the next caller from getting it.
+            if (config.isStaleWhileRevalidate()) {
+                HPDSearchResult stale = getResultCache().getStale(key, config.getResultCacheMaxStaleMS());
+                if (stale != null) {
+                    log.log(Level.FINE, "Search of HPD {0} answered with a stale result from the result cache", instanceId);
+                    refreshCachedResult(hpd, searchRequest, key);
+                    HPDSearchResult result = new HPDSearchResult(stale);
+                    result.setServedStale(true);
+                    return result;
+                }
+            }
+        }
+        HPDSearchResult result = searchDirectoryCoalesced(instanceId, searchRequest, deadline);
+        if (isCacheable(searchRequest, result)) {
+            if (missKey != null && result.getEntities().isEmpty()) {
+                getNegativeCache().put(missKey, Boolean.TRUE, config.getNegativeCacheTTLMS());
+            } else if (key != null) {
+                putCachedResult(key, new HPDSearchResult(result), config.getResultCacheTTLMS(hpd));
+            }
+        }
+        return result;
+    }
+
+    //Searches the directory again in the background and caches what comes back, unless that's already under way
+    private void refreshCachedResult(final HPDInstanceModel hpd, HPDSearchRequest searchRequest, final String key) {
+        if (shutdown || !resultRefreshes.add(key)) {
+            return;
+        }
+        //Our own copy, since the caller is free to change or reuse theirs
+        final HPDSearchRequest refreshRequest = new HPDSearchRequest(searchRequest);
+        try {
+            getSearchExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HPDSearchResult result = searchDirectoryCoalesced(hpd.getId(), refreshRequest, System.currentTimeMillis() + config.getFederatedSearchTimeoutMS());
+                        if (isCacheable(refreshRequest, result)) {
+                            putCachedResult(key, new HPDSearchResult(result), config.getResultCacheTTLMS(hpd));
+                        } else {
+                            log.log(Level.INFO, "Refresh of a cached search of HPD {0} failed, the stale result stays cached: {1}", new Object[]{hpd.getId(), result.getResultMsg()});
+                        }
+                    } finally {
+                        resultRefreshes.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            //Shutting down
+            resultRefreshes.remove(key);
+        }
+    }
+
+    //Only complete answers are worth repeating.  Errors, and results missing a phase, are searched again next time.  So are
+    //results the HPD cut short, eg at its timeLimit, unless it was only at the sizeLimit that was asked for.
+    private static boolean isCacheable(HPDSearchRequest searchRequest, HPDSearchResult result) {
+        if (result.getResultCode() < 0 || result.isDegraded()) {
+            return false;
+        }
+        return !result.isTruncated() || (searchRequest.getResultSizeLimit() > 0 && result.getEntities().size() >= searchRequest.getResultSizeLimit());
+    }
+
+    //What an HPD answers when a search finds nothing
+    private static HPDSearchResult newNotFoundResult() {
+        Map<HPDSearchPhase, HPDSearchPhase.Status> phases = new LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status>();
+        phases.put(HPDSearchPhase.ENTITIES, HPDSearchPhase.Status.DONE);
+        return newDirectoryResult(new ProcessedHPDResponseDoc(), phases);
+    }
+
+    private synchronized HPDCache<Boolean> getNegativeCache() {
+        if (negativeCache == null) {
+            negativeCache = new HPDCache<Boolean>(config.getNegativeCacheMaxEntries());
+        }
+        return negativeCache;
+    }
+
+    //Hits, misses and evictions of the negative cache since it was last cleared
+    public HPDCacheStats getNegativeCacheStats() {
+        return getNegativeCache().getStats();
+    }
+
+    //Forgets every lookup that found nothing, eg once a missing provider is known to have been added
+    public void clearNegativeCache() {
+        getNegativeCache().clear();
+    }
+
+    //Joins an identical search of the directory that's already running, if coalescing is on and there is one
+    private HPDSearchResult searchDirectoryCoalesced(final String instanceId, final HPDSearchRequest searchRequest, final long deadline) {
+        HPDInstanceModel hpd = getInstanceById(instanceId);
+        if (!config.isCoalesceRequests() || hpd == null) {
+            return searchDirectoryIfAvailable(instanceId, searchRequest, deadline);
+        }
+        try {
+            return directorySearchFlights.execute(hpd.getId().toLowerCase() + "|" + searchRequest.getCriteriaFingerprint(), new Callable<HPDSearchResult>() {
+                @Override
+                public HPDSearchResult call() {
+                    return searchDirectoryIfAvailable(instanceId, searchRequest, deadline);
+                }
+            }, deadline);
+        } catch (HPDDeadlineExceededException dee) {
+            return new HPDSearchResult(HPDResult.HPD_DEADLINE_EXCEEDED, dee.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return new HPDSearchResult(HPDResult.HPD_RESPONSE_TIMEOUT, "Interrupted while waiting for an identical search of the HPD already in flight.");
+        } catch (Exception e) {
+            //searchDirectoryIfAvailable() reports its failures in the result, so this can't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized HPDCache<HPDSearchResult> getResultCache() {
+        if (resultCache == null) {
+            //Expired results are kept only while they may still be served stale.  How stale is too stale is looked up per search.
+            resultCache = new HPDCache<HPDSearchResult>(config.getResultCacheMaxEntries(), config.isStaleWhileRevalidate());
+        }
+        return resultCache;
+    }
+
+    //Results too stale to serve are dropped as new ones come in, rather than waiting for the LRU to get to them
+    private void putCachedResult(String key, HPDSearchResult result, long ttlMS) {
+        HPDCache<HPDSearchResult> cache = getResultCache();
+        if (config.isStaleWhileRevalidate()) {
+            cache.purgeExpired(config.getResultCacheMaxStaleMS());
+        }
+        cache.put(key, result, ttlMS);
+    }
+
+    //Hits, misses and evictions of the result cache since it was last cleared
+    public HPDCacheStats getResultCacheStats() {
+        return getResultCache().getStats();
+    }
+
+    //Drops every cached result, eg after a directory's contents are known to have changed
+    public void clearResultCache() {
+        getResultCache().clear();
+    }
+
+    //The HPD's cache of orgs, services and credentials by DN, or null if entity caching is off
+    private HPDCache<HPDBaseModel> getEntityCache(HPDInstanceModel hpd) {
+        if (!config.isEntityCache()) {
+            return null;
+        }
+        return getEntityCache(hpd.getId().toLowerCase());
+    }
+
+    private HPDCache<HPDBaseModel> getEntityCache(String key) {
+        HPDCache<HPDBaseModel> cache = entityCaches.get(key);
+        if (cache == null) {
+            HPDCache<HPDBaseModel> newCache = new HPDCache<HPDBaseModel>(config.getEntityCacheMaxEntries());
+            cache = entityCaches.putIfAbsent(key, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    //Takes the DNs we have cached entries for out of dns, and returns copies of those entries keyed by the DN they were asked for by
+    private <T extends HPDBaseModel> Map<String, T> takeCachedEntries(HPDInstanceModel hpd, List<String> dns, Class<T> type) {
+        Map<String, T> cached = new LinkedHashMap<String, T>();
+        HPDCache<HPDBaseModel> cache = getEntityCache(hpd);
+        if (cache == null) {
+            return cached;
+        }
+        for (Iterator<String> it = dns.iterator(); it.hasNext();) {
+            String dn = it.next();
+            if (dn == null) {
+                continue;
+            }
+            HPDBaseModel entry = cache.get(dn.toLowerCase());
+            if (type.isInstance(entry)) {
+                cached.put(dn, type.cast(copyEntry(entry)));
+                it.remove();
+            }
+        }
+        return cached;
+    }
+
+    private void cacheEntries(HPDInstanceModel hpd, List<? extends HPDBaseModel> entries) {
+        HPDCache<HPDBaseModel> cache = getEntityCache(hpd);
+        if (cache == null) {
+            return;
+        }
+        List<HPDBaseModel> copies = new ArrayList<HPDBaseModel>(entries.size());
+        for (HPDBaseModel entry : entries) {
+            //Copied before they're woven into the results, so changes to what we return don't reach the cache
+            HPDBaseModel copy = copyEntry(entry);
+            cache.put(entry.getDN().toLowerCase(), copy, config.getEntityCacheTTLMS());
+            copies.add(copy);
+        }
+        //The cache only ever hands out copies of its entries, so the disk can be written from the same ones
+        HPDEntityCacheStore store = getEntityCacheStore();
+        if (store != null) {
+            store.append(hpd.getId().toLowerCase(), copies, System.currentTimeMillis() + config.getEntityCacheTTLMS());
+        }
+    }
+
+    //The entity cache only holds the kinds of entries the enrichment phases look up by DN
+    private static HPDBaseModel copyEntry(HPDBaseModel entry) {
+        if (entry instanceof HPDEntityModel) {
+            return new HPDEntityModel((HPDEntityModel) entry);
+        } else if (entry instanceof HPDElectronicServiceModel) {
+            return new HPDElectronicServiceModel((HPDElectronicServiceModel) entry);
+        } else if (entry instanceof HPDCredentialModel) {
+            return new HPDCredentialModel((HPDCredentialModel) entry);
+        }
+        throw new IllegalArgumentException("Unexpected entity cache entry " + entry.getClass().getName());
+    }
+
+    //The entity cache's copy on disk, or null if it isn't kept on disk.  The first call starts loading it in the background.
+    private synchronized HPDEntityCacheStore getEntityCacheStore() {
+        if (entityCacheStore == null && config.isEntityCache() && config.isPersistentEntityCache() && !shutdown) {
+            entityCacheStore = new HPDEntityCacheStore(new File(config.getEntityCacheStorePath()), new HPDEntityCacheStore.Sink() {
+                @Override
+                public HPDInstanceModel getInstance(String directoryKey) {
+                    return getInstanceById(directoryKey);
+                }
+
+                @Override
+                public void entryLoaded(String directoryKey, String dnKey, HPDBaseModel entry, long expiryTime) {
+                    getEntityCache(directoryKey).restore(dnKey, entry, expiryTime);
+                }
+            });
+            entityCacheStore.load();
+        }
+        return entityCacheStore;
+    }
+
+    //Hits, misses and evictions of the entity cache for the HPD, or null if it has none
+    public HPDCacheStats getEntityCacheStats(String instanceId) {
+        HPDCache<HPDBaseModel> cache = entityCaches.get(instanceId.toLowerCase());
+        return cache != null ? cache.getStats() : null;
+    }
+
+    //Drops every cached org, service and credential of every HPD, on disk too
+    public void clearEntityCaches() {
+        synchronized (this) {
+            if (entityCacheStore != null) {
+                //Stops a load that's under way before the caches are cleared below, so nothing it loads outlives them
+                entityCacheStore.clear();
+            } else if (config.isPersistentEntityCache()) {
+                //Nothing has read the file yet, so there's no need to start the store just to clear it
+                File storeFile = new File(config.getEntityCacheStorePath());
+                if (storeFile.exists() && !storeFile.delete()) {
+                    log.log(Level.WARNING, "Unable to delete {0}", storeFile);
+                }
+            }
+        }
+        entityCaches.clear();
+    }
+
+    private void scheduleProbe(final HPDCircuitBreaker breaker, final int generation) {
+        if (shutdown) {
+            return;
+        }
+        //The timer just hands the probe to the search pool so a slow HPD can't hold up search deadlines
+        getSearchDeadlineTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (shutdown) {
+                    return;
+                }
+                getSearchExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        probe(breaker, generation);
+                    }
+                });
+            }
+        }, config.getCircuitBreakerProbeIntervalMS(), TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(HPDCircuitBreaker breaker, int generation) {
+        if (!breaker.probeStarted(generation)) {
+            //Somebody reset it while we were waiting, or it has opened again since and has its own probes
+            return;
+        }
+        HPDSearchResult result = searchDirectory(breaker.getInstanceId(), newPingRequest(breaker.getInstanceId()), System.currentTimeMillis() + config.getFederatedSearchTimeoutMS());
+        if (breaker.probeFinished(result)) {
+            log.log(Level.INFO, "Circuit closed for HPD {0}, it is answering again", breaker.getInstanceId());
+        } else {
+            scheduleProbe(breaker, generation);
+        }
+    }
+
     private HPDSearchResult search(HPDSearchRequest searchRequest) {
+        return search(searchRequest, null);
+    }
+
+    //status, if given, is kept up to date as each directory starts and finishes
+    private HPDSearchResult search(HPDSearchRequest searchRequest, AsynchSearchStatus status) {
+        HPDAsyncSearch asyncSearch = startSearch(searchRequest, status, null);
+        try {
+            return asyncSearch.getResult().get();
+        } catch (InterruptedException ie) {
+            //Give up on whoever hasn't answered yet, same as if the deadline had passed
+            asyncSearch.cancelPendingDirectories();
+            Thread.currentThread().interrupt();
+            return new HPDSearchResult(HPDResult.HPD_RESPONSE_TIMEOUT, "Interrupted while waiting for the federated search to complete.");
+        } catch (ExecutionException ee) {
+            //The merged result is only ever completed with a value
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    //Starts the search and returns straight away.  Use the futures on the returned search to get at the results as they come in.
+    public HPDAsyncSearch searchHPDAsync(HPDSearchRequest request) {
+        return startSearch(request, null, null);
+    }
+
+    //As above, with results pushed to the listener as each directory answers
+    public HPDAsyncSearch searchHPDAsync(HPDSearchRequest request, HPDSearchListener listener) {
+        return startSearch(request, null, listener);
+    }
+
+    //status, if given, is kept up to date as each directory starts and finishes
+    private HPDAsyncSearch startSearch(final HPDSearchRequest searchRequest, final AsynchSearchStatus status, HPDSearchListener listener) {
         //If we have no Directories to search, we return
         if (searchRequest.getDirectoryIds() == null || searchRequest.getDirectoryIds().isEmpty()) {
-            return new HPDSearchResult(HPDSearchResult.HPD_NO_DIRECTORY_SPECIFIED_ON_SEARCH, "HPDSearchRequest contained no Directories to search.");
+            return HPDAsyncSearch.completed(searchRequest, new HPDSearchResult(HPDSearchResult.HPD_NO_DIRECTORY_SPECIFIED_ON_SEARCH, "HPDSearchRequest contained no Directories to search."), listener, getCallbackExecutor());
         }
         if (!searchRequest.hasSearchCriteria()) {
-            return new HPDSearchResult(HPDSearchResult.HPD_NO_SEARCH_CRITERIA_SPECIFIED, "HPDSearchRequest contained no search criteria.  Cannot execute open ended searches.");
-        }
-        //TODO:  We'll thread here.  For now do them synchronously, one at a time.
-        HPDSearchResult result = new HPDSearchResult();
-        
-        RoundRobinChain<HPDEntityModel> chain = new RoundRobinChain<HPDEntityModel>();
-        
-        for (String dirId : searchRequest.getDirectoryIds()) {
-            HPDSearchResult searchResult = searchDirectory(dirId, searchRequest);
-            result.updateHPDResult(dirId, searchResult);
-            
-            List<HPDEntityModel> entities = searchResult.getEntities();
-            if (entities != null && (! entities.isEmpty())) {
-                chain.addIterator(entities.iterator());
-            }
+            return HPDAsyncSearch.completed(searchRequest, new HPDSearchResult(HPDSearchResult.HPD_NO_SEARCH_CRITERIA_SPECIFIED, "HPDSearchRequest contained no search criteria.  Cannot execute open ended searches."), listener, getCallbackExecutor());
+        }
+        //Every directory, and every call each one makes, has to fit inside the same deadline
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + config.getFederatedSearchTimeoutMS();
+        if (searchRequest.getDeadlineMillis() > 0) {
+            deadline = Math.min(deadline, searchRequest.getDeadlineMillis());
+        }
+        final long directoryDeadline = deadline - DEADLINE_RESERVE_MS;
+        //The entity cache on disk is loaded by the first search, while it's busy with its first phase
+        getEntityCacheStore();
+        final Executor callbackExecutor = getCallbackExecutor();
+        final HPDAsyncSearch asyncSearch = new HPDAsyncSearch(searchRequest, deadline - startTime, status, listener, callbackExecutor);
+
+        //Fan out: every directory gets its own task so a federated search costs the slowest directory rather than the sum of them
+        for (final String dirId : searchRequest.getDirectoryIds()) {
+            asyncSearch.addDirectorySearch(dirId, new HPDSearchFuture<HPDSearchResult>(new Callable<HPDSearchResult>() {
+                @Override
+                public HPDSearchResult call() {
+                    if (status != null) {
+                        status.directoryStarted(dirId);
+                    }
+                    return searchDirectoryCached(dirId, searchRequest, directoryDeadline);
+                }
+            }));
         }
-        
-        List<HPDEntityModel> entities = chain.toList();
-        result.setEntities(entities);
 
-        return result;
+        //Anybody still out there at the deadline gets cancelled and reported as a timeout for that directory
+        final Future<?> deadlineTimer = getSearchDeadlineTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                //Cancelling completes the futures and runs whatever's chained onto them, so not on the timer's only thread
+                try {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            asyncSearch.cancelPendingDirectories();
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    asyncSearch.cancelPendingDirectories();
+                }
+            }
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        asyncSearch.getResult().whenComplete(new BiConsumer<HPDSearchResult, Throwable>() {
+            @Override
+            public void accept(HPDSearchResult result, Throwable failure) {
+                deadlineTimer.cancel(false);
+            }
+        });
+
+        asyncSearch.start(getSearchExecutor());
+        return asyncSearch;
     }
     
-    private ProcessedHPDResponseDoc executeAndParseSearch(HPDInstanceModel hpd, HPDSearchRequest searchRequest) throws Exception {
-        Document responseDoc = submitHPDDSMLSearchRequest(hpd, searchRequest);
+    private synchronized HPDConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            connectionManager = new HPDConnectionManager(config);
+        }
+        return connectionManager;
+    }
+    
+    private synchronized ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            searchExecutor = Executors.newFixedThreadPool(config.getSearchThreadPoolSize(), new HPDThreadFactory("hpd-search"));
+        }
+        return searchExecutor;
+    }
+    
+    private synchronized ScheduledThreadPoolExecutor getSearchDeadlineTimer() {
+        if (searchDeadlineTimer == null) {
+            searchDeadlineTimer = new ScheduledThreadPoolExecutor(1, new HPDThreadFactory("hpd-search-deadline"));
+            //Nearly every search finishes before its deadline, so don't leave their cancelled deadlines sitting in the queue
+            searchDeadlineTimer.setRemoveOnCancelPolicy(true);
+        }
+        return searchDeadlineTimer;
+    }
+    
+    //searchAsynch() callers get a bounded pool and queue so a burst of them can't pile up unbounded work
+    private synchronized ExecutorService getAsynchSearchExecutor() {
+        if (asynchSearchExecutor == null) {
+            asynchSearchExecutor = new ThreadPoolExecutor(config.getAsynchSearchThreadPoolSize(), config.getAsynchSearchThreadPoolSize(), 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(config.getAsynchSearchQueueSize()), new HPDThreadFactory("hpd-asynch-search"));
+        }
+        return asynchSearchExecutor;
+    }
+    
+    //Enrichment searches get their own pool since they're started from the directory searches running on the search pool.
+    //When it's saturated the directory search just runs the enrichment search itself rather than waiting for a thread.
+    private synchronized ExecutorService getEnrichmentExecutor() {
+        if (enrichmentExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(config.getSearchThreadPoolSize(), config.getSearchThreadPoolSize(), 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new HPDThreadFactory("hpd-enrichment"), new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            enrichmentExecutor = executor;
+        }
+        return enrichmentExecutor;
+    }
+    
+    //Hedged requests only run when there's a spare thread for them.  Otherwise we just keep waiting on the original call.
+    private synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(config.getSearchThreadPoolSize(), config.getSearchThreadPoolSize(), 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new HPDThreadFactory("hpd-hedge"));
+            executor.allowCoreThreadTimeOut(true);
+            hedgeExecutor = executor;
+        }
+        return hedgeExecutor;
+    }
 
-        return parseResponseDocToHPDEntities(hpd, responseDoc);        
+    //Listener calls, and the cancelling of directories at the deadline.  Kept off the search pool so a slow listener can't
+    //hold up searching, and off the deadline timer so one search's listener can't hold up another search's deadline.
+    private synchronized ExecutorService getCallbackExecutor() {
+        if (callbackExecutor == null) {
+            callbackExecutor = Executors.newCachedThreadPool(new HPDThreadFactory("hpd-search-callback"));
+        }
+        return callbackExecutor;
+    }
+
+    //Latency of calls to the directory, tracked separately for each kind of search since an entity search and a credential
+    //lookup can take very different amounts of time
+    private HPDLatencyTracker getLatencyTracker(HPDInstanceModel hpd, List<HPDSearchRequest> searchRequests) {
+        StringBuilder key = new StringBuilder(hpd.getId().toLowerCase());
+        for (HPDSearchRequest searchRequest : searchRequests) {
+            key.append('|').append(searchRequest.getSearchScope());
+        }
+        return getLatencyTracker(key.toString());
+    }
+
+    private HPDLatencyTracker getLatencyTracker(String key) {
+        HPDLatencyTracker tracker = latencyTrackers.get(key);
+        if (tracker == null) {
+            HPDLatencyTracker newTracker = new HPDLatencyTracker();
+            tracker = latencyTrackers.putIfAbsent(key, newTracker);
+            if (tracker == null) {
+                tracker = newTracker;
+            }
+        }
+        return tracker;
+    }
+
+    private HPDHedgeBudget getHedgeBudget(HPDInstanceModel hpd) {
+        String key = hpd.getId().toLowerCase();
+        HPDHedgeBudget budget = hedgeBudgets.get(key);
+        if (budget == null) {
+            HPDHedgeBudget newBudget = new HPDHedgeBudget(config.getHedgeBudgetPercent());
+            budget = hedgeBudgets.putIfAbsent(key, newBudget);
+            if (budget == null) {
+                budget = newBudget;
+            }
+        }
+        return budget;
     }
     
-    private HPDSearchResult searchDirectory(String instanceId, HPDSearchRequest searchRequest) {
+    //Releases the worker threads and pooled HPD connections.  The client should not be used after shutdown.
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (searchExecutor != null) {
+            searchExecutor.shutdownNow();
+            searchExecutor = null;
+        }
+        if (enrichmentExecutor != null) {
+            enrichmentExecutor.shutdownNow();
+            enrichmentExecutor = null;
+        }
+        if (asynchSearchExecutor != null) {
+            //Searches still waiting for a thread never will now.  Finish them so nobody polls for them forever.
+            for (Runnable neverRun : asynchSearchExecutor.shutdownNow()) {
+                if (neverRun instanceof AsynchSearchTask) {
+                    ((AsynchSearchTask) neverRun).status.searchFinished(newShutdownResult());
+                }
+            }
+            asynchSearchExecutor = null;
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+            hedgeExecutor = null;
+        }
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdownNow();
+            callbackExecutor = null;
+        }
+        if (searchDeadlineTimer != null) {
+            searchDeadlineTimer.shutdownNow();
+            searchDeadlineTimer = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        if (entityCacheStore != null) {
+            entityCacheStore.close();
+            entityCacheStore = null;
+        }
+    }
+    
+    //Enrichment searches look up every entry referenced by the results we're returning, so they're never size limited
+    private static HPDSearchRequest newEnrichmentRequest(HPDSearchRequest.HPDSearchScope searchScope, String instanceId) {
+        HPDSearchRequest enrichmentRequest = new HPDSearchRequest(searchScope, instanceId);
+        enrichmentRequest.setResultSizeLimit(0);
+        return enrichmentRequest;
+    }
+    
+    //Identical calls to the same HPD that overlap, such as two searches looking up the same org by DN, share one answer when coalescing is on
+    private ProcessedHPDResponseDoc executeAndParseSearch(final HPDInstanceModel hpd, final HPDSearchRequest searchRequest, final long deadline) throws Exception {
+        if (!config.isCoalesceRequests()) {
+            return submitHPDDSMLSearchRequest(hpd, searchRequest, deadline);
+        }
+        return callFlights.execute(hpd.getId().toLowerCase() + "|" + searchRequest.getCriteriaFingerprint(), new Callable<ProcessedHPDResponseDoc>() {
+            @Override
+            public ProcessedHPDResponseDoc call() throws Exception {
+                return submitHPDDSMLSearchRequest(hpd, searchRequest, deadline);
+            }
+        }, deadline);
+    }
+    
+    //Runs two independent searches against the same directory side by side.  Either request may be null, in which case
+    //its slot in the returned array is null.  If the HPD takes batched searches both go out in one batchRequest.  Otherwise
+    //the first search runs on the calling thread.  A search that fails leaves its slot null and its exception in the
+    //same slot of failures, so one failing doesn't cost us the other.
+    private ProcessedHPDResponseDoc[] executeAndParseSearches(final HPDInstanceModel hpd, HPDSearchRequest firstRequest, final HPDSearchRequest secondRequest,
+            final long deadline, Exception[] failures) throws InterruptedException {
+        ProcessedHPDResponseDoc[] results = new ProcessedHPDResponseDoc[2];
+        if (firstRequest != null && secondRequest != null && hpd.isBatchSearchSupported()) {
+            List<HPDSearchRequest> batchedRequests = new ArrayList<HPDSearchRequest>();
+            batchedRequests.add(firstRequest);
+            batchedRequests.add(secondRequest);
+            try {
+                return submitHPDDSMLSearchRequests(hpd, batchedRequests, deadline).toArray(results);
+            } catch (Exception e) {
+                failures[0] = e;
+                failures[1] = e;
+                return results;
+            }
+        }
+        Future<ProcessedHPDResponseDoc> secondSearch = null;
+        if (firstRequest != null && secondRequest != null) {
+            secondSearch = getEnrichmentExecutor().submit(new Callable<ProcessedHPDResponseDoc>() {
+                @Override
+                public ProcessedHPDResponseDoc call() throws Exception {
+                    return executeAndParseSearch(hpd, secondRequest, deadline);
+                }
+            });
+        }
+        try {
+            if (firstRequest != null) {
+                try {
+                    results[0] = executeAndParseSearch(hpd, firstRequest, deadline);
+                } catch (Exception e) {
+                    failures[0] = e;
+                }
+            }
+            if (secondSearch != null) {
+                try {
+                    results[1] = secondSearch.get();
+                } catch (ExecutionException ee) {
+                    failures[1] = ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+                }
+            } else if (secondRequest != null) {
+                try {
+                    results[1] = executeAndParseSearch(hpd, secondRequest, deadline);
+                } catch (Exception e) {
+                    failures[1] = e;
+                }
+            }
+            return results;
+        } finally {
+            if (secondSearch != null) {
+                secondSearch.cancel(true);
+            }
+        }
+    }
+    
+    //Runs the searches for one stage of enrichment.  Whatever happens to them, the entities we already have are kept.
+    //Each phase is marked DONE, SKIPPED if the deadline had already passed or ran out while it was running, TIMED_OUT if
+    //the HPD was too slow to answer, or FAILED.  Phases that didn't finish come back null.
+    private ProcessedHPDResponseDoc[] executeEnrichmentStage(HPDInstanceModel hpd, HPDSearchRequest firstRequest, HPDSearchPhase firstPhase,
+            HPDSearchRequest secondRequest, HPDSearchPhase secondPhase, long deadline, Map<HPDSearchPhase, HPDSearchPhase.Status> phases) throws InterruptedException {
+        HPDSearchRequest[] requests = {firstRequest, secondRequest};
+        HPDSearchPhase[] stagePhases = {firstPhase, secondPhase};
+        if (System.currentTimeMillis() >= deadline) {
+            for (int i = 0; i < requests.length; i++) {
+                if (requests[i] != null) {
+                    phases.put(stagePhases[i], HPDSearchPhase.Status.SKIPPED);
+                }
+            }
+            return new ProcessedHPDResponseDoc[2];
+        }
+        Exception[] failures = new Exception[2];
+        ProcessedHPDResponseDoc[] results = executeAndParseSearches(hpd, firstRequest, secondRequest, deadline, failures);
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i] == null) {
+                continue;
+            }
+            HPDSearchPhase.Status status;
+            if (failures[i] == null) {
+                status = HPDSearchPhase.Status.DONE;
+            } else if (failures[i] instanceof HPDDeadlineExceededException) {
+                status = HPDSearchPhase.Status.SKIPPED;
+            } else if (failures[i] instanceof HPDRequestTimeoutException || failures[i] instanceof ConnectTimeoutException) {
+                status = HPDSearchPhase.Status.TIMED_OUT;
+            } else {
+                status = HPDSearchPhase.Status.FAILED;
+            }
+            if (failures[i] != null) {
+                log.log(Level.WARNING, "{0} search of HPD {1} {2}, returning results without it: {3}", new Object[]{stagePhases[i], hpd.getId(), status, failures[i].getMessage()});
+            }
+            phases.put(stagePhases[i], status);
+        }
+        return results;
+    }
+
+    private static HPDSearchResult newDirectoryResult(ProcessedHPDResponseDoc rde, Map<HPDSearchPhase, HPDSearchPhase.Status> phases) {
+        HPDSearchResult result = new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, rde);
+        result.setPhaseStatuses(phases);
+        if (result.isDegraded()) {
+            result.setResultMsg(result.getResultMsg() + ".  Returned without " + result.getIncompletePhases() + ".");
+        }
+        return result;
+    }
+
+    private HPDSearchResult searchDirectory(String instanceId, HPDSearchRequest searchRequest, long deadline) {
         HPDInstanceModel hpd = getInstanceById(instanceId);
         if (hpd == null) {
             return new HPDSearchResult(HPDResult.HPD_NOT_FOUND_IN_CONFIG_BY_ID, String.format("No HPD instance found for Id '%s'.", instanceId));
         }
 
         try {
+            LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status> phases = new LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status>();
             //PHASE 1 - Search for Entities
             //Build snd submit a DSML search based on our HPDSearchRequest model     
-            ProcessedHPDResponseDoc entitySearchResp = executeAndParseSearch(hpd, searchRequest);
+            ProcessedHPDResponseDoc entitySearchResp = executeAndParseSearch(hpd, searchRequest, deadline);
+            phases.put(HPDSearchPhase.ENTITIES, HPDSearchPhase.Status.DONE);
 
             if (entitySearchResp.getTotalEntiesFound()==0) {
-                return new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, entitySearchResp);
+                return newDirectoryResult(entitySearchResp, phases);
             }
 
             if (searchRequest.isProvidersAffiliatedToOrgSearch()) {
                 HPDSearchRequest affiliatedProvidersRequest = new HPDSearchRequest(HPDSearchRequest.HPDSearchScope.IndividualProvidersOnly, instanceId);    
+                affiliatedProvidersRequest.setResultSizeLimit(searchRequest.getResultSizeLimit());
                 for (HPDOrgToProvRelationshipModel rel : entitySearchResp.getRelationships()) {
                     affiliatedProvidersRequest.addIndividualProviderDN(rel.getHasAProviderDN());
                 }
-                return new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, executeAndParseSearch(hpd, affiliatedProvidersRequest));                
+                ProcessedHPDResponseDoc affiliatedProvidersResp = executeEnrichmentStage(hpd, affiliatedProvidersRequest, HPDSearchPhase.AFFILIATED_PROVIDERS, null, null, deadline, phases)[0];
+                return newDirectoryResult(affiliatedProvidersResp != null ? affiliatedProvidersResp : entitySearchResp, phases);
             }
             
+            //The enrichment searches below only depend on what came back before them, so they run as a small graph:
+            //PHASE 1 -> {PHASE 2a, PHASE 3} -> {PHASE 2b, PHASE 2c}.  Searches in the same stage run side by side and
+            //their results are woven into the PHASE 1 entities on this thread once the stage is done.
+            
             //Create some maps to assist us when we weave in more content below
             HashMap<String, String> serviceToEntityMap = new HashMap<String, String>();    //Map<ServiceDN, EntityUID>
             HashMap<String, String> serviceToRelMap = new HashMap<String, String>();       //Map<ServiceDN, RelationshipDN>
             List<String> relatedOrgDNs = new ArrayList<String>();
             List<String> relatedServiceDNs = new ArrayList<String>(); 
             List<String> foundOrgs = new ArrayList<String>();
+            //Sets alongside the DN lists so de-duping them doesn't mean scanning them for every relationship
+            HashSet<String> relatedOrgDNSet = new HashSet<String>();
+            HashSet<String> relatedServiceDNSet = new HashSet<String>();
 
             //PHASE 2a - For all the entities we just got back, we need to get any relationships they participate in
             //This translates to searching ou=Relationship for any hpdHasAProvider                
-            HPDSearchRequest relationshipRequest = new HPDSearchRequest(HPDSearchRequest.HPDSearchScope.HasAProviderRelationshipsOnly, instanceId);
+            HPDSearchRequest relationshipRequest = newEnrichmentRequest(HPDSearchRequest.HPDSearchScope.HasAProviderRelationshipsOnly, instanceId);
 
             List<String> entityDNs = new ArrayList<String>();
             for (HPDEntityModel entityModel : entitySearchResp.getEntities()) {
                     entityDNs.add(entityModel.getDN());
                     if (!entityModel.getServiceDNs().isEmpty()) {
                         relatedServiceDNs.addAll(entityModel.getServiceDNs());
+                        relatedServiceDNSet.addAll(entityModel.getServiceDNs());
                         for (String serviceDN : entityModel.getServiceDNs()) {
                             serviceToEntityMap.put(serviceDN.toLowerCase(), entityModel.getEntityUID());
                         }
@@ -338,19 +1118,46 @@ public class HPDClient {
 
             //Some services we know because they are directly added to the Entity entity themselves
 
-            //Execute the DSML search for the relationships for all the Entities that came back
-            ProcessedHPDResponseDoc relationshipSearchEntities = executeAndParseSearch(hpd, relationshipRequest);  
+            //PHASE 3 - Fetch all the hpdCredential entries from the remote LDAP server based on the references from entities returned from PHASE 1
+            //Create a map of EntityUID and hpdCredential DN reference to help when we get responses back and map them back to the entity
+            HashMap<String, String> entityCredentialsMap = new HashMap<String, String>();
+            List<String> credentialDNs = new ArrayList<String>();
+            for (HPDBaseModel baseModel : entitySearchResp.getEntities()) {
+                if (baseModel instanceof HPDEntityModel) {
+                    HPDEntityModel entityModel = (HPDEntityModel) baseModel;
+
+                    for (String credentialDN : entityModel.getCredentialDNs()) {
+                        entityCredentialsMap.put(credentialDN, entityModel.getEntityUID());
+                        credentialDNs.add(credentialDN);
+                    }
+                }
+            }
+            //Credentials we have cached don't need to be asked for again
+            Map<String, HPDCredentialModel> cachedCredentials = takeCachedEntries(hpd, credentialDNs, HPDCredentialModel.class);
+            HPDSearchRequest credentialRequest = null;
+            if (!credentialDNs.isEmpty()) {
+                //Build a searchQuery to get all the Credentials referenced from all the entities we returned in Phase 1
+                credentialRequest = newEnrichmentRequest(HPDSearchRequest.HPDSearchScope.CredentialsOnly, instanceId);
+                credentialRequest.setCredentialDNs(credentialDNs);
+            }
 
+            //Execute the DSML searches for the relationships and the Credentials for all the Entities that came back in Phase 1
+            ProcessedHPDResponseDoc[] stageResults = executeEnrichmentStage(hpd, relationshipRequest, HPDSearchPhase.RELATIONSHIPS, credentialRequest, HPDSearchPhase.CREDENTIALS, deadline, phases);
+            ProcessedHPDResponseDoc relationshipSearchEntities = stageResults[0];
+            ProcessedHPDResponseDoc credentialSearchEntities = stageResults[1];
+            if (credentialRequest == null && !cachedCredentials.isEmpty()) {
+                phases.put(HPDSearchPhase.CREDENTIALS, HPDSearchPhase.Status.DONE);
+            }
 
             //Ok, if we got any back, we want to work through them and weave data coming back into the Entities that came back in PHASE 1
-            if (!relationshipSearchEntities.getRelationships().isEmpty()) {
+            if (relationshipSearchEntities != null && !relationshipSearchEntities.getRelationships().isEmpty()) {
                 for (HPDOrgToProvRelationshipModel relationship : relationshipSearchEntities.getRelationships()) {
-                    if (!relatedOrgDNs.contains(relationship.getHasAnOrgDN())) {
+                    if (relatedOrgDNSet.add(relationship.getHasAnOrgDN())) {
                         relatedOrgDNs.add(relationship.getHasAnOrgDN());
                     }
                     for (String serviceDN : relationship.getHasAServiceDN()) {
                         String normalServiceDN = serviceDN.toLowerCase();
-                        if (!relatedServiceDNs.contains(normalServiceDN)) {
+                        if (relatedServiceDNSet.add(normalServiceDN)) {
                             relatedServiceDNs.add(normalServiceDN);
                         }
                         if (!serviceToEntityMap.containsKey(normalServiceDN)) {
@@ -367,77 +1174,87 @@ public class HPDClient {
                         entitySearchResp.addContactToEntity(relationship.getRelatedProviderEntityUID(), relContact);
                     }
                 }
+                
+                //Orgs and services we have cached don't need to be asked for again.  Popular orgs are shared by a lot of providers.
+                Map<String, HPDEntityModel> cachedOrgs = takeCachedEntries(hpd, relatedOrgDNs, HPDEntityModel.class);
+                Map<String, HPDElectronicServiceModel> cachedServices = takeCachedEntries(hpd, relatedServiceDNs, HPDElectronicServiceModel.class);
+
                 //Search for related Orgs and weave that information into the Entity here...     
+                HPDSearchRequest orgRequest = null;
                 if (!relatedOrgDNs.isEmpty()) {
                     //PHASE 2b - For all the entities we just got back, we need to get any orgs that were referenced by the relationship
                     //This translates to searching ou=HCRegulatedOrganization for any UID we referenced                            
-                    HPDSearchRequest serviceRequest = new HPDSearchRequest(HPDSearchRequest.HPDSearchScope.OrgsOnly, instanceId); 
-                    serviceRequest.setOrganizationDNs(relatedOrgDNs);
-                    ProcessedHPDResponseDoc orgSearchEntities = executeAndParseSearch(hpd, serviceRequest); 
-                    //If we got orgs back, and we should, we need to  weave those orgs into the relationships that referred to them
-                    if (!orgSearchEntities.getEntities().isEmpty()) {
-                        for (HPDEntityModel orgModel : orgSearchEntities.getEntities()) {
-                            entitySearchResp.addOrgModelToAffiliatedRelationships(orgModel);
-                        }
-                    }
-                }                    
+                    orgRequest = newEnrichmentRequest(HPDSearchRequest.HPDSearchScope.OrgsOnly, instanceId); 
+                    orgRequest.setOrganizationDNs(relatedOrgDNs);
+                }
                 //Search for related Services here and weave those contacts into the contact list
+                HPDSearchRequest serviceRequest = null;
                 if (!relatedServiceDNs.isEmpty()) {
                     //PHASE 2c - For all the relationships we just got back, we need to get any services that were referenced by the relationship
                     //This translates to searching ou=Service for any hpdserviceid                            
-                    HPDSearchRequest serviceRequest = new HPDSearchRequest(HPDSearchRequest.HPDSearchScope.ServicesOnly, instanceId); 
+                    serviceRequest = newEnrichmentRequest(HPDSearchRequest.HPDSearchScope.ServicesOnly, instanceId); 
                     serviceRequest.setServiceDNs(relatedServiceDNs);
-                    ProcessedHPDResponseDoc serviceSearchEntities = executeAndParseSearch(hpd, serviceRequest);
-                    if (!serviceSearchEntities.getServices().isEmpty()) {
-                        for (HPDElectronicServiceModel service : serviceSearchEntities.getServices()) {
-                            String entityId = serviceToEntityMap.get(service.getDN().toLowerCase());
-                            if (entityId!=null) {
-                                entitySearchResp.addServiceToEntity(entityId, service);
-                            }
-                            String relationshipId = serviceToRelMap.get(service.getDN().toLowerCase());
-                            if (relationshipId!=null) {
-                                entitySearchResp.addServiceToRelationship(relationshipId, service);
-                            }
+                }
+                stageResults = executeEnrichmentStage(hpd, orgRequest, HPDSearchPhase.AFFILIATED_ORGS, serviceRequest, HPDSearchPhase.SERVICES, deadline, phases);
+                ProcessedHPDResponseDoc orgSearchEntities = stageResults[0];
+                ProcessedHPDResponseDoc serviceSearchEntities = stageResults[1];
+                if (orgRequest == null && !cachedOrgs.isEmpty()) {
+                    phases.put(HPDSearchPhase.AFFILIATED_ORGS, HPDSearchPhase.Status.DONE);
+                }
+                if (serviceRequest == null && !cachedServices.isEmpty()) {
+                    phases.put(HPDSearchPhase.SERVICES, HPDSearchPhase.Status.DONE);
+                }
+                List<HPDEntityModel> orgs = new ArrayList<HPDEntityModel>(cachedOrgs.values());
+                if (orgSearchEntities != null) {
+                    cacheEntries(hpd, orgSearchEntities.getEntities());
+                    orgs.addAll(orgSearchEntities.getEntities());
+                }
+                List<HPDElectronicServiceModel> services = new ArrayList<HPDElectronicServiceModel>(cachedServices.values());
+                if (serviceSearchEntities != null) {
+                    cacheEntries(hpd, serviceSearchEntities.getServices());
+                    services.addAll(serviceSearchEntities.getServices());
+                }
+                
+                //If we got orgs back, and we should, we need to  weave those orgs into the relationships that referred to them
+                if (!orgs.isEmpty()) {
+                    for (HPDEntityModel orgModel : orgs) {
+                        entitySearchResp.addOrgModelToAffiliatedRelationships(orgModel);
+                    }
+                }                    
+                if (!services.isEmpty()) {
+                    for (HPDElectronicServiceModel service : services) {
+                        String entityId = serviceToEntityMap.get(service.getDN().toLowerCase());
+                        if (entityId!=null) {
+                            entitySearchResp.addServiceToEntity(entityId, service);
+                        }
+                        String relationshipId = serviceToRelMap.get(service.getDN().toLowerCase());
+                        if (relationshipId!=null) {
+                            entitySearchResp.addServiceToRelationship(relationshipId, service);
                         }
                     }
                 }
 
             }
 
-            //PHASE 3 - Fetch all the hpdCredential entries from the remote LDAP server based on the references from entities returned from PHASE 1
-            //Create a map of EntityUID and hpdCredential DN reference to help when we get responses back and map them back to the entity
-            HashMap<String, String> entityCredentialsMap = new HashMap<String, String>();
-            List<String> credentialDNs = new ArrayList<String>();
-            for (HPDBaseModel baseModel : entitySearchResp.getEntities()) {
-                if (baseModel instanceof HPDEntityModel) {
-                    HPDEntityModel entityModel = (HPDEntityModel) baseModel;
-
-                    for (String credentialDN : entityModel.getCredentialDNs()) {
-                        entityCredentialsMap.put(credentialDN, entityModel.getEntityUID());
-                        credentialDNs.add(credentialDN);
-                    }
-                }
+            //Ok, we should have got a list of credentials back from the remote server...
+            //Weave these credentials into the Entities we returned from Phase 1
+            for (Map.Entry<String, HPDCredentialModel> cachedCredential : cachedCredentials.entrySet()) {
+                entitySearchResp.addCredentialToEntity(entityCredentialsMap.get(cachedCredential.getKey()), cachedCredential.getValue());
             }
-            if (!credentialDNs.isEmpty()) {
-                //Build a searchQuery to get all the Credentials referenced from all the entities we returned in Phase 1
-                HPDSearchRequest credentialRequest = new HPDSearchRequest(HPDSearchRequest.HPDSearchScope.CredentialsOnly, instanceId);
-                credentialRequest.setCredentialDNs(credentialDNs);
-                //Execute the DSML search for the Credentials for all the Entities that came back in Phase 1                 
-                ProcessedHPDResponseDoc credentialSearchEntities = executeAndParseSearch(hpd, credentialRequest);
-                //Ok, we should have got a list of credentials back from the remote server...
-                //Weave these credentials into the Entities we returned from Phase 1
-                if (!credentialSearchEntities.getCredentials().isEmpty()) {
-                    for (HPDCredentialModel credential : credentialSearchEntities.getCredentials()) {
-                        if (entityCredentialsMap.containsKey(credential.getDN())) {
-                            String entityUID = entityCredentialsMap.get(credential.getDN());
-                            //Find the entity from Phase 1 with this entityUID and add this credential                                
-                            entitySearchResp.addCredentialToEntity(entityUID, credential);
-                        }
+            if (credentialSearchEntities != null) {
+                cacheEntries(hpd, credentialSearchEntities.getCredentials());
+            }
+            if (credentialSearchEntities != null && !credentialSearchEntities.getCredentials().isEmpty()) {
+                for (HPDCredentialModel credential : credentialSearchEntities.getCredentials()) {
+                    if (entityCredentialsMap.containsKey(credential.getDN())) {
+                        String entityUID = entityCredentialsMap.get(credential.getDN());
+                        //Find the entity from Phase 1 with this entityUID and add this credential                                
+                        entitySearchResp.addCredentialToEntity(entityUID, credential);
                     }
                 }
             }
 
-            return new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, entitySearchResp);
+            return newDirectoryResult(entitySearchResp, phases);
 
         } catch (UnexpectedHPDCallException x) {
             return new HPDSearchResult(HPDResult.HPD_UNEXPECTED_HTTP_STATUS_CODE, x.getMessage() + (x.statusCode > -1 ? String.format(", StatusCode=%s", x.statusCode) : ""));
@@ -445,6 +1262,8 @@ public class HPDClient {
             return new HPDSearchResult(HPDResult.HPD_MALFORMED_OR_INVALID_DSML_REQUEST, m.getMessage());
         } catch (HPDRequestTimeoutException rte) {
             return new HPDSearchResult(HPDResult.HPD_RESPONSE_TIMEOUT, rte.getMessage());
+        } catch (HPDDeadlineExceededException dee) {
+            return new HPDSearchResult(HPDResult.HPD_DEADLINE_EXCEEDED, dee.getMessage());
         } catch (HPDUnknownHostException uhe) {
             return new HPDSearchResult(HPDResult.HPD_UNKNOWN_HOST, uhe.getMessage());
         } catch (ConnectTimeoutException cte) {
@@ -461,118 +1280,208 @@ public class HPDClient {
         }
     }
 
-    private ProcessedHPDResponseDoc parseResponseDocToHPDEntities(HPDInstanceModel hpdInstanceModel, Document responseDoc) {
+    private void addEntryToResponseDoc(HPDInstanceModel hpdInstanceModel, ProcessedHPDResponseDoc rde, HPDEntryRecord entry) {
+        String entityDN = entry.getDN();
+        log.log(Level.FINE, "Found: {0}", entityDN);
+        try {
+            //If the node is an Credential, then let's consume that and add that to the our result
+            if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_CREDENTIAL_RDN_OU.toLowerCase())) {
+                HPDCredentialModel credential = new HPDCredentialModel(hpdInstanceModel, entry);
+                log.log(Level.FINE, "Found: new Credential {0}", credential);                    
+                rde.addCredential(credential);
+            }
+            //If the node is an Individual or Org, then let's consume that and add that to the our result                
+            if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_INDIVIDUAL_RDN_OU.toLowerCase()) || entityDN.contains(Constants.ENTITY_TYPE_ORG_RDN_OU.toLowerCase())) {
+                HPDEntityModel entity = new HPDEntityModel(hpdInstanceModel, entry);
+                log.log(Level.FINE, "Found: new Entity {0}", entity);                           
+                rde.addEntity(entity);
+            }
+            //If the node is an Relationship, then let's consume that and add that to the our result                     
+            if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_RELATIONSHIP_RDN_OU.toLowerCase())) {
+                HPDOrgToProvRelationshipModel rel = new HPDOrgToProvRelationshipModel(hpdInstanceModel, entry);
+                log.log(Level.FINE, "Found: new Relationship {0}", rel);                        
+                rde.addRelationship(rel);
+            }     
+            //If the node is an Relationship, then let's consume that and add that to the our result                
+            if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_SERVICE_RDN_OU.toLowerCase())) {
+                HPDElectronicServiceModel service = new HPDElectronicServiceModel(hpdInstanceModel, entry);
+                log.log(Level.FINE, "Found: new Service {0}", service);                     
+                rde.addServices(service);
+            }
 
-        ProcessedHPDResponseDoc rde = new ProcessedHPDResponseDoc(responseDoc);
+        } catch (UnexpectedLDAPObjectException lox) {
+            log.log(Level.WARNING, lox.getMessage());
+        } catch (HPDObjectWithNoUIDException ux) {
+            log.log(Level.WARNING, ux.getMessage());
+        }
+    }
 
-        //Ok, the request was sucessful.  We need to process the entities that came back
-        NodeList searchResponseNodeList = responseDoc.getElementsByTagNameNS("*", "searchResultEntry");
+    private ProcessedHPDResponseDoc submitHPDDSMLSearchRequest(HPDInstanceModel hpd, HPDSearchRequest searchRequest, long deadline)
+            throws NoSuchAlgorithmException, KeyManagementException, MalformedOrInvalidHPDRequestResponse,
+            UnexpectedHPDCallException, HPDRequestTimeoutException, HPDDeadlineExceededException,
+            HPDUnknownHostException, ConnectTimeoutException, HPDCertificateException,
+            HPDConnectionRefusedException, HPDTLSException {
+        List<HPDSearchRequest> searchRequests = new ArrayList<HPDSearchRequest>();
+        searchRequests.add(searchRequest);
+        return submitHPDDSMLSearchRequests(hpd, searchRequests, deadline).get(0);
+    }
 
-        //Iterate thru the Entities we found
-        for (int i = 0; i < searchResponseNodeList.getLength(); i++) {
-            Node node = searchResponseNodeList.item(i);
-            String entityDN = node.getAttributes().getNamedItem("dn").getNodeValue();
-            log.log(Level.FINE, "Found: {0}", entityDN);
-            try {
-                //If the node is an Credential, then let's consume that and add that to the our result
-                if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_CREDENTIAL_RDN_OU.toLowerCase())) {
-                    HPDCredentialModel credential = new HPDCredentialModel(hpdInstanceModel, entityDN, node.getChildNodes());
-                    log.log(Level.FINE, "Found: new Credential {0}", credential);                    
-                    rde.getCredentials().add(credential);
-                }
-                //If the node is an Individual or Org, then let's consume that and add that to the our result                
-                if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_INDIVIDUAL_RDN_OU.toLowerCase()) || entityDN.contains(Constants.ENTITY_TYPE_ORG_RDN_OU.toLowerCase())) {
-                    HPDEntityModel entity = new HPDEntityModel(hpdInstanceModel, entityDN, node.getChildNodes());
-                    log.log(Level.FINE, "Found: new Entity {0}", entity);                           
-                    rde.getEntities().add(entity);
-                }
-                //If the node is an Relationship, then let's consume that and add that to the our result                     
-                if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_RELATIONSHIP_RDN_OU.toLowerCase())) {
-                    HPDOrgToProvRelationshipModel rel = new HPDOrgToProvRelationshipModel(hpdInstanceModel, entityDN, node.getChildNodes());
-                    log.log(Level.FINE, "Found: new Relationship {0}", rel);                        
-                    rde.getRelationships().add(rel);
-                }     
-                //If the node is an Relationship, then let's consume that and add that to the our result                
-                if (entityDN.toLowerCase().contains(Constants.ENTITY_TYPE_SERVICE_RDN_OU.toLowerCase())) {
-                    HPDElectronicServiceModel service = new HPDElectronicServiceModel(hpdInstanceModel, entityDN, node.getChildNodes());
-                    log.log(Level.FINE, "Found: new Service {0}", service);                     
-                    rde.getServices().add(service);
-                }
-
-            } catch (UnexpectedLDAPObjectException lox) {
-                log.log(Level.WARNING, lox.getMessage());
-            } catch (HPDObjectWithNoUIDException ux) {
-                log.log(Level.WARNING, ux.getMessage());
-            }
-        }
-        log.log(Level.INFO, "Found {0} LDAP entries", rde.getTotalEntiesFound());
-        return rde;
-    }
-
-    private Document submitHPDDSMLSearchRequest(HPDInstanceModel hpd, HPDSearchRequest searchRequest)
+    //Submits the search requests to the HPD in a single batchRequest and returns their results in the same order.  More than
+    //one request should only be sent to an HPD that supports it (HPDInstanceModel.isBatchSearchSupported()).
+    private List<ProcessedHPDResponseDoc> submitHPDDSMLSearchRequests(final HPDInstanceModel hpd, final List<HPDSearchRequest> searchRequests, final long deadline)
             throws NoSuchAlgorithmException, KeyManagementException, MalformedOrInvalidHPDRequestResponse,
-            UnexpectedHPDCallException, HPDRequestTimeoutException, HPDUnknownHostException,
-            ConnectTimeoutException, HPDCertificateException, HPDConnectionRefusedException,
-            HPDTLSException {
+            UnexpectedHPDCallException, HPDRequestTimeoutException, HPDDeadlineExceededException,
+            HPDUnknownHostException, ConnectTimeoutException, HPDCertificateException,
+            HPDConnectionRefusedException, HPDTLSException {
+
+        HPDLatencyTracker latency = getLatencyTracker(hpd, searchRequests);
+        long hedgeDelayMS = -1;
+        if (config.isHedgedRequests()) {
+            getHedgeBudget(hpd).callMade();
+            hedgeDelayMS = latency.getQuantile(0.95);
+        }
+        long startTime = System.currentTimeMillis();
+        final HttpPost primaryPost = new HttpPost(hpd.getServiceURL());
+        if (hedgeDelayMS < 0) {
+            //Not hedging, or we haven't seen enough calls to this HPD to know what slow looks like yet
+            try {
+                List<ProcessedHPDResponseDoc> rdes = sendHPDDSMLSearchRequests(hpd, primaryPost, searchRequests, latency, deadline);
+                latency.record(System.currentTimeMillis() - startTime);
+                return rdes;
+            } catch (HPDRequestTimeoutException rte) {
+                //We don't know how long it would have taken, but it was at least this long.  Counting it lets an
+                //adaptive timeout grow when the HPD slows down rather than cutting it off every time.
+                latency.record(System.currentTimeMillis() - startTime);
+                throw rte;
+            }
+        }
 
+        //If the call is still going at the HPD's p95 we send it again, to the mirror if there is one.  Whichever answers
+        //first aborts the other.
+        final HttpPost hedgePost = new HttpPost(StringUtils.isNotBlank(hpd.getMirrorServiceURL()) ? hpd.getMirrorServiceURL() : hpd.getServiceURL());
+        final HPDSearchFuture<List<ProcessedHPDResponseDoc>> hedge = new HPDSearchFuture<List<ProcessedHPDResponseDoc>>(new Callable<List<ProcessedHPDResponseDoc>>() {
+            @Override
+            public List<ProcessedHPDResponseDoc> call() throws Exception {
+                List<ProcessedHPDResponseDoc> rdes = sendHPDDSMLSearchRequests(hpd, hedgePost, searchRequests, latency, deadline);
+                primaryPost.abort();
+                return rdes;
+            }
+        });
+        final HPDHedgeBudget budget = getHedgeBudget(hpd);
+        Future<?> hedgeTimer = getSearchDeadlineTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!budget.tryHedge()) {
+                    hedge.cancel(false);
+                    return;
+                }
+                try {
+                    log.log(Level.FINE, "Hedging slow call to HPD {0}", hpd.getId());
+                    getHedgeExecutor().execute(hedge);
+                } catch (RejectedExecutionException ree) {
+                    hedge.cancel(false);
+                }
+            }
+        }, hedgeDelayMS, TimeUnit.MILLISECONDS);
         try {
-            log.log(Level.INFO, "\n\n" + StringUtils.repeat("=", 120) + "\nSearching HPD\n\tHPD Name: {0}\n\tServiceURL: {1} AuthType: {2}\n\tCriteria: {3}\n\n", new Object[]{hpd.getName(), hpd.getServiceURL(), hpd.getAuthType(), searchRequest.getSearchSummary()});
-
-            DefaultHttpClient client = null;
-            HttpParams httpParams = new BasicHttpParams();
-
-            //Set the timeout... the amount of time we'll wait for a connection
-            httpParams.setIntParameter("http.connection.timeout", 5000);
+            List<ProcessedHPDResponseDoc> rdes = sendHPDDSMLSearchRequests(hpd, primaryPost, searchRequests, latency, deadline);
+            hedgeTimer.cancel(false);
+            hedge.cancel(true);
+            hedgePost.abort();
+            latency.record(System.currentTimeMillis() - startTime);
+            return rdes;
+        } catch (Exception primaryFailure) {
+            //Either the original call failed, or the hedge answered first and aborted it
+            if (hedgeTimer.cancel(false)) {
+                hedge.cancel(false);
+            }
+            try {
+                List<ProcessedHPDResponseDoc> rdes = hedge.get();
+                latency.record(System.currentTimeMillis() - startTime);
+                return rdes;
+            } catch (InterruptedException ie) {
+                hedge.cancel(true);
+                hedgePost.abort();
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ee) {
+                //Both failed.  Report the original failure.
+            } catch (CancellationException ce) {
+                //There was no hedge
+            }
+            if (primaryFailure instanceof HPDRequestTimeoutException) {
+                latency.record(System.currentTimeMillis() - startTime);
+            }
+            throw primaryFailure;
+        }
+    }
 
-            //Set how long we'll wait for a response to our query once connected
-            //First we try the value that set for this specific directory and if that's not set, we use the default
-            Integer timeoutMS = hpd.getRequestTimeoutMS();
-            if (timeoutMS == null || timeoutMS == 0) {
-                timeoutMS = config.getDefaultRequestTimeoutMS();
+    //Sends the search requests in postMethod and reads the results.  The caller can abort postMethod to give up on it.
+    private List<ProcessedHPDResponseDoc> sendHPDDSMLSearchRequests(HPDInstanceModel hpd, HttpPost postMethod, List<HPDSearchRequest> searchRequests, HPDLatencyTracker latency, long deadline)
+            throws NoSuchAlgorithmException, KeyManagementException, MalformedOrInvalidHPDRequestResponse,
+            UnexpectedHPDCallException, HPDRequestTimeoutException, HPDDeadlineExceededException,
+            HPDUnknownHostException, ConnectTimeoutException, HPDCertificateException,
+            HPDConnectionRefusedException, HPDTLSException {
+
+        boolean responseConsumed = false;
+        //Whether the search deadline, rather than this HPD's own timeouts, set how long we'd wait
+        boolean socketTimeoutClamped = false;
+        boolean connectTimeoutClamped = false;
+        try {
+            String searchSummary = searchRequests.get(0).getSearchSummary();
+            for (int i = 1; i < searchRequests.size(); i++) {
+                searchSummary = searchSummary.concat("\n\tCriteria: " + searchRequests.get(i).getSearchSummary());
             }
-            httpParams.setIntParameter("http.socket.timeout", timeoutMS);
+            log.log(Level.INFO, "\n\n" + StringUtils.repeat("=", 120) + "\nSearching HPD\n\tHPD Name: {0}\n\tServiceURL: {1} AuthType: {2}\n\tCriteria: {3}\n\n", new Object[]{hpd.getName(), postMethod.getURI(), hpd.getAuthType(), searchSummary});
 
-            //Create our POST method based on the Service URL for the HPD
-            HttpPost postMethod = new HttpPost(hpd.getServiceURL());
             //It's SOAP 1.2
             postMethod.addHeader("Content-Type", "application/soap+xml;charset=utf-8");
 
-            //Ok, based on our authorization style, we need to configure the client and method
+            //Ok, based on our authorization style, we need to configure the method.  For TLS the pooled client
+            //for this HPD already carries our keystore and truststore.
             switch (hpd.getAuthType()) {
                 //If the AuthType is Basic, then we want to supply the id and password                
                 case Constants.PROVIDER_DIR_AUTH_TYPE_BASIC:
                     String authStr = hpd.getUsername() + ":" + hpd.getPassword();
                     String encodedPassword = new String(new Base64().encode(authStr.getBytes()));
                     postMethod.addHeader("Authorization", "Basic " + encodedPassword.trim());
-                    client = new DefaultHttpClient(httpParams);
                     break;
                 case Constants.PROVIDER_DIR_AUTH_TYPE_TLS:
-                    KeyStore keystore = KeyStore.getInstance("pkcs12");
-                    InputStream keystoreInput = new FileInputStream(config.getHPDKeyStorePath());
-                    String keystorePassword = "changeit";
-                    keystore.load(keystoreInput, keystorePassword.toCharArray());
-
-                    KeyStore truststore = KeyStore.getInstance("jks");
-                    InputStream truststoreInput = new FileInputStream(config.getHPDTrustStorePath());
-                    truststore.load(truststoreInput, "changeit".toCharArray());
-
-                    SchemeRegistry schemeRegistry = new SchemeRegistry();
-                    SSLSocketFactory sf = new SSLSocketFactory(keystore, keystorePassword, truststore);
-                    sf.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-                    schemeRegistry.register(new Scheme("https", sf, 443));
-
-                    client = new DefaultHttpClient(new ThreadSafeClientConnManager(httpParams, schemeRegistry), httpParams);
-                    break;
-
                 case Constants.PROVIDER_DIR_AUTH_TYPE_NONE:
-                    client = new DefaultHttpClient(httpParams);                    
                     break;
                 default:
                     throw new RuntimeException("Unexpected HPD Authorization Type " + hpd.getAuthType());
             }
+            DefaultHttpClient client = getConnectionManager().getClient(hpd);
 
-
-            String dsmlSearchRequest = searchRequest.toDSML(hpd, config);
+            //Set how long we'll wait for a response to our query once connected
+            //First we try the value that set for this specific directory and if that's not set, we use the default.
+            //With adaptive timeouts it comes from how long this kind of call to this directory has been taking.
+            //Either way neither wait can run past the search deadline.
+            long remainingMS = deadline - System.currentTimeMillis();
+            if (remainingMS <= 0) {
+                throw new HPDDeadlineExceededException("Search deadline passed before HPD instance " + hpd.getId() + " could be called");
+            }
+            long socketTimeoutMS = config.getSocketTimeoutMS(hpd, latency);
+            long connectTimeoutMS = config.getConnectTimeoutMS();
+            socketTimeoutClamped = remainingMS < socketTimeoutMS;
+            connectTimeoutClamped = remainingMS < connectTimeoutMS;
+            HttpConnectionParams.setSoTimeout(postMethod.getParams(), (int) Math.min(socketTimeoutMS, remainingMS));
+            HttpConnectionParams.setConnectionTimeout(postMethod.getParams(), (int) Math.min(connectTimeoutMS, remainingMS));
+            //Waiting for a pooled connection gets no longer than making a new one would
+            postMethod.getParams().setLongParameter(HPDConnectionManager.CONN_MANAGER_TIMEOUT, Math.min(connectTimeoutMS, remainingMS));
+
+            //A batch of searches gets a requestID per searchRequest so we can sort the searchResponses back out below
+            final HashMap<String, Integer> batchedRequestIndexes = new HashMap<String, Integer>();
+            String dsmlSearchRequest;
+            if (searchRequests.size() == 1) {
+                dsmlSearchRequest = searchRequests.get(0).toDSML(hpd, config, deadline);
+            } else {
+                String batchRequestId = HPDUtil.generateRequestId();
+                for (int i = 0; i < searchRequests.size(); i++) {
+                    batchedRequestIndexes.put(HPDSearchRequest.getBatchedSearchRequestId(batchRequestId, i), i);
+                }
+                dsmlSearchRequest = HPDSearchRequest.toBatchDSML(hpd, config, searchRequests, batchRequestId, deadline);
+            }
             postMethod.setEntity(new StringEntity(dsmlSearchRequest));
             log.log(Level.FINE, "DSML SearchRequest to HPD: {0}", dsmlSearchRequest);
             //Execute the POST to the remove gateway
@@ -594,40 +1503,107 @@ public class HPDClient {
                     System.out.println("\n\n" + dsmlSearchRequest + "\n\n");
                     throw new UnexpectedHPDCallException("HPD call failed due to an unexpected HTTP statusCode. (HTTP-" + statusCode + ").", statusCode);
             }
-            //get the response that came back from the remote HPD instance and do some cleanup on it if necessary
-            String batchResponse = getNormalizedBatchResponse(EntityUtils.toString(postResp.getEntity()));
-            log.log(Level.FINE, "DSML Response:" + batchResponse);
-            
-            //Now, DOM what came back and make sure we got some search results back
-            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-            docBuilderFactory.setNamespaceAware(true);
-            DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-            Document responseDoc = docBuilder.parse(new InputSource(new StringReader(batchResponse)));
-
-            //Did the DSML request fail withe an errorResponse due to formatting, structure, etc issues
-            NodeList errorResponseNodeList = responseDoc.getElementsByTagName(Constants.DSML_ERROR_RESPONSE_RESULT);
-            if (errorResponseNodeList != null && errorResponseNodeList.getLength() > 0) {
-                String errorType = errorResponseNodeList.item(0).getAttributes().getNamedItem("type").getTextContent();
-                if (errorType != null && errorType.equals(Constants.DSML_REQUEST_MALFORMED_RESULT)) {
-                    throw new MalformedOrInvalidHPDRequestResponse("The DSML request that was submitted was malformed.");
-                } else {
-                    throw new MalformedOrInvalidHPDRequestResponse("Unexpected DSML error type encountered.  Type=" + errorType);
-                }
-            }
-            return responseDoc;
+            //Stream the response that came back from the remote HPD instance straight into our models
+            final HPDInstanceModel hpdInstanceModel = hpd;
+            final List<ProcessedHPDResponseDoc> rdes = new ArrayList<ProcessedHPDResponseDoc>();
+            final int[] sizeLimits = new int[searchRequests.size()];
+            final int[] entriesReceived = new int[searchRequests.size()];
+            for (int i = 0; i < searchRequests.size(); i++) {
+                rdes.add(new ProcessedHPDResponseDoc());
+                sizeLimits[i] = searchRequests.get(i).getResultSizeLimit();
+            }
+            DSMLResponseParser.EntryHandler entryHandler = new DSMLResponseParser.EntryHandler() {
+                @Override
+                public void handleEntry(String requestId, HPDEntryRecord entry) throws MalformedOrInvalidHPDRequestResponse {
+                    int requestIndex = 0;
+                    if (rdes.size() > 1) {
+                        Integer batchedRequestIndex = batchedRequestIndexes.get(requestId);
+                        if (batchedRequestIndex == null) {
+                            throw new MalformedOrInvalidHPDRequestResponse("Batched DSML response contained an entry for an unknown requestID '" + requestId + "'.");
+                        }
+                        requestIndex = batchedRequestIndex;
+                    }
+                    //Not every HPD honors sizeLimit, so enforce it here as well.  Anything past the limit is just read past.
+                    if (sizeLimits[requestIndex] > 0 && entriesReceived[requestIndex] >= sizeLimits[requestIndex]) {
+                        rdes.get(requestIndex).setTruncated(true);
+                        return;
+                    }
+                    entriesReceived[requestIndex]++;
+                    addEntryToResponseDoc(hpdInstanceModel, rdes.get(requestIndex), entry);
+                }
+
+                @Override
+                public void handleResultDone(String requestId, int resultCode, String errorMessage) throws MalformedOrInvalidHPDRequestResponse {
+                    int requestIndex = 0;
+                    if (rdes.size() > 1) {
+                        Integer batchedRequestIndex = batchedRequestIndexes.get(requestId);
+                        if (batchedRequestIndex == null) {
+                            throw new MalformedOrInvalidHPDRequestResponse("Batched DSML response contained a searchResultDone for an unknown requestID '" + requestId + "'.");
+                        }
+                        requestIndex = batchedRequestIndex;
+                    }
+                    switch (resultCode) {
+                        case Constants.LDAP_SUCCESS:
+                        case Constants.LDAP_NO_SUCH_OBJECT:
+                            //No such object is just an HPD without that ou, ie nothing found
+                            break;
+                        case Constants.LDAP_TIME_LIMIT_EXCEEDED:
+                        case Constants.LDAP_SIZE_LIMIT_EXCEEDED:
+                        case Constants.LDAP_ADMIN_LIMIT_EXCEEDED:
+                            log.log(Level.FINE, "HPD {0} returned a partial result, resultCode={1}", new Object[]{hpdInstanceModel.getId(), resultCode});
+                            rdes.get(requestIndex).setTruncated(true);
+                            break;
+                        default:
+                            log.log(Level.WARNING, "HPD {0} ended a search with resultCode={1}: {2}", new Object[]{hpdInstanceModel.getId(), resultCode, errorMessage});
+                    }
+                }
+            };
+            HttpEntity responseEntity = postResp.getEntity();
+            if (config.isRetainResponseDSML()) {
+                //Only buffer the whole response when someone has asked to see it
+                String batchResponse = EntityUtils.toString(responseEntity);
+                log.log(Level.FINE, "DSML Response:" + batchResponse);
+                for (ProcessedHPDResponseDoc rde : rdes) {
+                    rde.setOriginalResponseDSML(batchResponse);
+                }
+                responseParser.parse(new StringReader(batchResponse), entryHandler);
+            } else {
+                InputStream responseStream = responseEntity.getContent();
+                try {
+                    responseParser.parse(responseStream, EntityUtils.getContentCharSet(responseEntity), entryHandler);
+                    //Drain anything after the batchResponse so the connection can go back to the pool
+                    EntityUtils.consume(responseEntity);
+                } finally {
+                    responseStream.close();
+                }
+            }
+            responseConsumed = true;
+            int totalEntriesFound = 0;
+            for (ProcessedHPDResponseDoc rde : rdes) {
+                totalEntriesFound += rde.getTotalEntiesFound();
+            }
+            log.log(Level.INFO, "Found {0} LDAP entries", totalEntriesFound);
+            return rdes;
         } catch (UnrecoverableKeyException uke) {
             throw new HPDTLSException("Error configuring TLS for HPD Call: " + uke.getMessage());
         } catch (KeyStoreException kse) {
             throw new HPDTLSException("Error configuring TLS for HPD Call: " + kse.getMessage());
         } catch (CertificateException ce) {
             throw new HPDTLSException("Error configuring TLS for HPD Call: " + ce.getMessage());
-        } catch (DOMException de) {
-            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: " + de.getMessage());
-        } catch (SAXException se) {
-            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: " + se.getMessage());
-        } catch (ParserConfigurationException pce) {
-            throw new MalformedOrInvalidHPDRequestResponse("Error processing HPD response: " + pce.getMessage());
+        } catch (ConnectionPoolTimeoutException cpte) {
+            if (connectTimeoutClamped) {
+                throw new HPDDeadlineExceededException("Search deadline passed waiting for a connection to HPD instance " + hpd.getId());
+            }
+            throw new ConnectTimeoutException("Timeout waiting for a pooled connection to HPD instance " + hpd.getId());
+        } catch (ConnectTimeoutException cte) {
+            if (connectTimeoutClamped) {
+                throw new HPDDeadlineExceededException("Search deadline passed while connecting to HPD instance " + hpd.getId());
+            }
+            throw cte;
         } catch (SocketTimeoutException ste) {
+            if (socketTimeoutClamped) {
+                throw new HPDDeadlineExceededException("Search deadline passed waiting on HPD instance " + hpd.getId());
+            }
             throw new HPDRequestTimeoutException("Timeout connecting to HPD instance " + hpd.getId());
         } catch (UnknownHostException uhe) {
             throw new HPDUnknownHostException("Unknown Host attempting to connect to server " + hpd.getId() + " at endpoint " + hpd.getServiceURL());
@@ -640,30 +1616,37 @@ public class HPDClient {
             throw new UnexpectedHPDCallException(io.getMessage(), -1);
         } catch (RuntimeException re) {
             throw new UnexpectedHPDCallException(re.getMessage(), -1);
+        } finally {
+            //If we bailed out before reading the whole response, don't hand a half-read connection back to the pool
+            if (!responseConsumed) {
+                postMethod.abort();
+            }
         }
     }
 
-    private String getNormalizedBatchResponse(String rawDSMLResponse) {
-        log.log(Level.FINE, "Raw Batch Response \n{0}\n", rawDSMLResponse);
+    //A search started by searchAsynch().  The status is always finished, whatever happens to the search.
+    private class AsynchSearchTask implements Runnable {
 
-        //HACK WARNING: If we get responses back where the knuckleheads are saying dsml:attribute versus dsml:attr, let's correct that
-        //Standardize on a couple other things as well
-        rawDSMLResponse = rawDSMLResponse.replaceAll("<dsml:attribute", "<attr");
-        rawDSMLResponse = rawDSMLResponse.replaceAll("</dsml:attribute", "</attr");
-        rawDSMLResponse = rawDSMLResponse.replaceAll("<attribute", "<attr");
-        rawDSMLResponse = rawDSMLResponse.replaceAll("</attribute", "</attr");
+        private final HPDSearchRequest request;
+        private final AsynchSearchStatus status;
 
-        rawDSMLResponse = rawDSMLResponse.replaceAll("<dsml:", "<");
-        rawDSMLResponse = rawDSMLResponse.replaceAll("</dsml:", "</");
+        AsynchSearchTask(HPDSearchRequest request, AsynchSearchStatus status) {
+            this.request = request;
+            this.status = status;
+        }
 
-        //HACK: If we received a <soap-env> wrapper around the response, strip it off.  Need better way to do this
-        //Later we can DOM the doc and grab the inner response and then turn that back into the batch response
-      if (rawDSMLResponse.toLowerCase().contains("<soap-env") || rawDSMLResponse.toLowerCase().contains("soap-envelope")) {
-            if (rawDSMLResponse.indexOf("<batchResponse") > 0) {
-                rawDSMLResponse = rawDSMLResponse.substring(rawDSMLResponse.indexOf("<batchResponse"), rawDSMLResponse.indexOf("</batchResponse>") + 16);
+        @Override
+        public void run() {
+            HPDSearchResult result = null;
+            try {
+                result = search(request, status);
+            } catch (RuntimeException re) {
+                log.log(Level.SEVERE, "Asynch search " + status.getSearchRequestId() + " failed", re);
+                result = new HPDSearchResult(HPDResult.HPD_RESPONSE_PARSE_ERROR, re.getMessage());
+            } finally {
+                //Only null if an Error is on its way out
+                status.searchFinished(result != null ? result : new HPDSearchResult(HPDResult.HPD_RESPONSE_PARSE_ERROR, "Asynch search " + status.getSearchRequestId() + " failed"));
             }
         }
-        log.log(Level.FINE, "Normalized Batch Response \n{0}\n", rawDSMLResponse);
-        return rawDSMLResponse;
     }
 }
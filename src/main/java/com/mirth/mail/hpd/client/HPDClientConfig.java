@@ -42,8 +42,64 @@ public class HPDClientConfig {
             
     public static Integer DEFAULT_REQUEST_TIMEOUT_MS    = 4000;  //4 seconds
     public static String DEFAULT_CLIENT_HOME_DIR        = "/opt/mirthmail/";
+    public static Integer DEFAULT_SEARCH_THREAD_POOL_SIZE       = 10;     //Number of directories we'll search concurrently on a federated search
+    public static Integer DEFAULT_FEDERATED_SEARCH_TIMEOUT_MS   = 20000;  //20 seconds.  Overall deadline for a federated search across all directories
+    public static Integer DEFAULT_MAX_CONNECTIONS_PER_ROUTE     = 5;      //Pooled keep-alive connections we'll hold open to a single HPD endpoint
+    public static Integer DEFAULT_MAX_CONNECTIONS_TOTAL         = 20;     //Upper bound on pooled connections for a single HPD instance
+    public static Integer DEFAULT_IDLE_CONNECTION_TIMEOUT_MS    = 30000;  //30 seconds.  Pooled connections idle longer than this are closed
+    public static Integer DEFAULT_ASYNCH_SEARCH_THREAD_POOL_SIZE = 5;     //Number of searchAsynch() searches we'll run at once
+    public static Integer DEFAULT_ASYNCH_SEARCH_QUEUE_SIZE      = 100;    //searchAsynch() searches waiting for a thread before we start turning them away
+    public static Integer DEFAULT_ASYNCH_SEARCH_RESULT_TTL_MS   = 600000; //10 minutes.  How long a finished searchAsynch() result is kept for getAsynchSearchStatus()
+    public static Integer DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;  //Consecutive failures before we stop sending searches to an HPD
+    public static Integer DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS = 30000; //30 seconds.  How often we check whether an HPD we stopped searching has come back
+    public static Integer DEFAULT_HEDGE_BUDGET_PERCENT          = 10;     //Hedged requests allowed per 100 calls to an HPD
+    public static Integer DEFAULT_CONNECT_TIMEOUT_MS            = 5000;   //5 seconds.  How long we'll wait to connect to an HPD
+    public static Integer DEFAULT_ADAPTIVE_TIMEOUT_PERCENTILE   = 99;     //Adaptive timeouts start from this percentile of recent call latency...
+    public static Double DEFAULT_ADAPTIVE_TIMEOUT_MULTIPLIER    = 3.0;    //...times this
+    public static Integer DEFAULT_ADAPTIVE_TIMEOUT_MIN_MS       = 1000;   //1 second.  Shortest timeout adaptive timeouts will set
+    public static Integer DEFAULT_ADAPTIVE_TIMEOUT_MAX_MS       = 30000;  //30 seconds.  Longest timeout adaptive timeouts will set
+    public static Integer DEFAULT_RESULT_CACHE_MAX_ENTRIES      = 1000;   //Directory search results we'll keep when result caching is on
+    public static Integer DEFAULT_RESULT_CACHE_TTL_MS           = 300000; //5 minutes.  How long a cached search result is used, unless the HPD sets its own
+    public static Integer DEFAULT_ENTITY_CACHE_MAX_ENTRIES      = 5000;   //Orgs, services and credentials we'll keep per HPD when entity caching is on
+    public static Integer DEFAULT_ENTITY_CACHE_TTL_MS           = 900000; //15 minutes.  How long a cached org, service or credential is used
+    public static Integer DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES    = 10000;  //Lookups that found nothing we'll remember when negative caching is on
+    public static Integer DEFAULT_NEGATIVE_CACHE_TTL_MS         = 60000;  //1 minute.  Short, so an entry added to an HPD is found soon after
+    public static Integer DEFAULT_RESULT_CACHE_MAX_STALE_MS     = 600000; //10 minutes.  How long past its TTL a cached result may still be served while it's refreshed
     
     private Integer defaultRequestTimeoutMS;
+    private Integer searchThreadPoolSize;
+    private Integer federatedSearchTimeoutMS;
+    private Integer maxConnectionsPerRoute;
+    private Integer maxConnectionsTotal;
+    private Integer idleConnectionTimeoutMS;
+    private Integer asynchSearchThreadPoolSize;
+    private Integer asynchSearchQueueSize;
+    private Integer asynchSearchResultTTLMS;
+    private Integer circuitBreakerFailureThreshold;
+    private Integer circuitBreakerProbeIntervalMS;
+    private Integer hedgeBudgetPercent;
+    private Integer connectTimeoutMS;
+    private Integer adaptiveTimeoutPercentile;
+    private Double adaptiveTimeoutMultiplier;
+    private Integer adaptiveTimeoutMinMS;
+    private Integer adaptiveTimeoutMaxMS;
+    private Integer resultCacheMaxEntries;
+    private Integer resultCacheTTLMS;
+    private Integer entityCacheMaxEntries;
+    private Integer entityCacheTTLMS;
+    private Integer negativeCacheMaxEntries;
+    private Integer negativeCacheTTLMS;
+    private Integer resultCacheMaxStaleMS;
+    private boolean returnAllAttributes;    //Ask every HPD for all attributes rather than just the ones the models read.  Useful when callers dig through getEntityAttrs().
+    private boolean retainResponseDSML;     //Buffer the raw DSML response so it's available on HPDResult.getResponseDSML().  Off by default; responses are streamed.
+    private boolean adaptiveTimeouts;       //Set each call's timeout from how long recent calls of the same kind to the same HPD took, rather than the fixed request timeout.  Off by default.
+    private boolean resultCache;            //Cache each directory's search results, keyed by the search criteria.  Off by default.
+    private boolean persistentEntityCache;  //Keep the entity cache on disk under the client home dir so it's still warm after a restart.  Only the enrichment orgs, services and credentials it holds; search results aren't kept.  Needs entityCache.  Off by default.
+    private boolean staleWhileRevalidate;   //Serve a cached result that's past its TTL, by up to resultCacheMaxStaleMS, straight away and refresh it in the background.  Needs resultCache.  Off by default.
+    private boolean entityCache;            //Cache the orgs, services and credentials that enrichment looks up, by DN.  Off by default.
+    private boolean negativeCache;          //Remember NPI, UID and Direct address lookups that found nothing, so retries are answered without asking the HPD.  Off by default.
+    private boolean coalesceRequests;       //Identical searches of the same HPD that overlap share one call, rather than each making their own.  Off by default.
+    private boolean hedgedRequests;         //Send a second copy of a call that's taking longer than the HPD's p95 and take whichever answers first.  Off by default.
     private String soapRequestTemplate;
     private String clientHomeDir;
 
@@ -53,12 +109,58 @@ public class HPDClientConfig {
         this.defaultRequestTimeoutMS = DEFAULT_REQUEST_TIMEOUT_MS;
         this.soapRequestTemplate = DEFAULT_SOAP_REQUEST_TEMPLATE;
         this.clientHomeDir = DEFAULT_CLIENT_HOME_DIR;
+        this.searchThreadPoolSize = DEFAULT_SEARCH_THREAD_POOL_SIZE;
+        this.federatedSearchTimeoutMS = DEFAULT_FEDERATED_SEARCH_TIMEOUT_MS;
+        this.maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        this.maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+        this.idleConnectionTimeoutMS = DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
+        this.asynchSearchThreadPoolSize = DEFAULT_ASYNCH_SEARCH_THREAD_POOL_SIZE;
+        this.asynchSearchQueueSize = DEFAULT_ASYNCH_SEARCH_QUEUE_SIZE;
+        this.asynchSearchResultTTLMS = DEFAULT_ASYNCH_SEARCH_RESULT_TTL_MS;
+        this.circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+        this.circuitBreakerProbeIntervalMS = DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS;
+        this.hedgeBudgetPercent = DEFAULT_HEDGE_BUDGET_PERCENT;
+        this.connectTimeoutMS = DEFAULT_CONNECT_TIMEOUT_MS;
+        this.adaptiveTimeoutPercentile = DEFAULT_ADAPTIVE_TIMEOUT_PERCENTILE;
+        this.adaptiveTimeoutMultiplier = DEFAULT_ADAPTIVE_TIMEOUT_MULTIPLIER;
+        this.adaptiveTimeoutMinMS = DEFAULT_ADAPTIVE_TIMEOUT_MIN_MS;
+        this.adaptiveTimeoutMaxMS = DEFAULT_ADAPTIVE_TIMEOUT_MAX_MS;
+        this.resultCacheMaxEntries = DEFAULT_RESULT_CACHE_MAX_ENTRIES;
+        this.resultCacheTTLMS = DEFAULT_RESULT_CACHE_TTL_MS;
+        this.entityCacheMaxEntries = DEFAULT_ENTITY_CACHE_MAX_ENTRIES;
+        this.entityCacheTTLMS = DEFAULT_ENTITY_CACHE_TTL_MS;
+        this.negativeCacheMaxEntries = DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES;
+        this.negativeCacheTTLMS = DEFAULT_NEGATIVE_CACHE_TTL_MS;
+        this.resultCacheMaxStaleMS = DEFAULT_RESULT_CACHE_MAX_STALE_MS;
     }
     
     public HPDClientConfig(String clientHomeDir) {     
         this.defaultRequestTimeoutMS = DEFAULT_REQUEST_TIMEOUT_MS;
         this.soapRequestTemplate = DEFAULT_SOAP_REQUEST_TEMPLATE;
         this.clientHomeDir = clientHomeDir;
+        this.searchThreadPoolSize = DEFAULT_SEARCH_THREAD_POOL_SIZE;
+        this.federatedSearchTimeoutMS = DEFAULT_FEDERATED_SEARCH_TIMEOUT_MS;
+        this.maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        this.maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+        this.idleConnectionTimeoutMS = DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
+        this.asynchSearchThreadPoolSize = DEFAULT_ASYNCH_SEARCH_THREAD_POOL_SIZE;
+        this.asynchSearchQueueSize = DEFAULT_ASYNCH_SEARCH_QUEUE_SIZE;
+        this.asynchSearchResultTTLMS = DEFAULT_ASYNCH_SEARCH_RESULT_TTL_MS;
+        this.circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+        this.circuitBreakerProbeIntervalMS = DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS;
+        this.hedgeBudgetPercent = DEFAULT_HEDGE_BUDGET_PERCENT;
+        this.connectTimeoutMS = DEFAULT_CONNECT_TIMEOUT_MS;
+        this.adaptiveTimeoutPercentile = DEFAULT_ADAPTIVE_TIMEOUT_PERCENTILE;
+        this.adaptiveTimeoutMultiplier = DEFAULT_ADAPTIVE_TIMEOUT_MULTIPLIER;
+        this.adaptiveTimeoutMinMS = DEFAULT_ADAPTIVE_TIMEOUT_MIN_MS;
+        this.adaptiveTimeoutMaxMS = DEFAULT_ADAPTIVE_TIMEOUT_MAX_MS;
+        this.resultCacheMaxEntries = DEFAULT_RESULT_CACHE_MAX_ENTRIES;
+        this.resultCacheTTLMS = DEFAULT_RESULT_CACHE_TTL_MS;
+        this.entityCacheMaxEntries = DEFAULT_ENTITY_CACHE_MAX_ENTRIES;
+        this.entityCacheTTLMS = DEFAULT_ENTITY_CACHE_TTL_MS;
+        this.negativeCacheMaxEntries = DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES;
+        this.negativeCacheTTLMS = DEFAULT_NEGATIVE_CACHE_TTL_MS;
+        this.resultCacheMaxStaleMS = DEFAULT_RESULT_CACHE_MAX_STALE_MS;
     }    
 
     public List<HPDInstanceModel> getInstances() {
@@ -100,6 +202,375 @@ public class HPDClientConfig {
         this.defaultRequestTimeoutMS = defaultRequestTimeoutMS;
     }
 
+    //The request timeout set for this specific directory, or the default if it doesn't have one
+    public int getRequestTimeoutMS(HPDInstanceModel hpd) {
+        Integer timeoutMS = hpd.getRequestTimeoutMS();
+        if (timeoutMS == null || timeoutMS == 0) {
+            timeoutMS = getDefaultRequestTimeoutMS();
+        }
+        return timeoutMS;
+    }
+
+    //How long results from this directory stay cached: its own TTL if it has one, otherwise ours
+    public int getResultCacheTTLMS(HPDInstanceModel hpd) {
+        Integer ttlMS = hpd.getResultCacheTTLMS();
+        if (ttlMS == null || ttlMS < 1) {
+            return getResultCacheTTLMS();
+        }
+        return ttlMS;
+    }
+
+    /**
+     * How long to wait for an answer to a call once connected.  With adaptive timeouts that's the configured percentile
+     * of recent latency for this kind of call times the multiplier, kept between the min and max.  Until there's enough
+     * history, or without adaptive timeouts, it's the request timeout.
+     */
+    public int getSocketTimeoutMS(HPDInstanceModel hpd, HPDLatencyTracker latency) {
+        if (!isAdaptiveTimeouts() || latency == null) {
+            return getRequestTimeoutMS(hpd);
+        }
+        long observedMS = latency.getQuantile(Math.min(getAdaptiveTimeoutPercentile(), 100) / 100.0);
+        if (observedMS < 0) {
+            return getRequestTimeoutMS(hpd);
+        }
+        long timeoutMS = (long) Math.ceil(observedMS * getAdaptiveTimeoutMultiplier());
+        return (int) Math.max(getAdaptiveTimeoutMinMS(), Math.min(getAdaptiveTimeoutMaxMS(), timeoutMS));
+    }
+
+    //When loaded from an older config.xml these may not be set, so fall back to the defaults
+    public Integer getSearchThreadPoolSize() {
+        if (searchThreadPoolSize == null || searchThreadPoolSize < 1) {
+            return DEFAULT_SEARCH_THREAD_POOL_SIZE;
+        }
+        return searchThreadPoolSize;
+    }
+
+    public void setSearchThreadPoolSize(Integer searchThreadPoolSize) {
+        this.searchThreadPoolSize = searchThreadPoolSize;
+    }
+
+    public Integer getFederatedSearchTimeoutMS() {
+        if (federatedSearchTimeoutMS == null || federatedSearchTimeoutMS < 1) {
+            return DEFAULT_FEDERATED_SEARCH_TIMEOUT_MS;
+        }
+        return federatedSearchTimeoutMS;
+    }
+
+    public void setFederatedSearchTimeoutMS(Integer federatedSearchTimeoutMS) {
+        this.federatedSearchTimeoutMS = federatedSearchTimeoutMS;
+    }
+
+    public Integer getMaxConnectionsPerRoute() {
+        if (maxConnectionsPerRoute == null || maxConnectionsPerRoute < 1) {
+            return DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        }
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public Integer getMaxConnectionsTotal() {
+        if (maxConnectionsTotal == null || maxConnectionsTotal < 1) {
+            return DEFAULT_MAX_CONNECTIONS_TOTAL;
+        }
+        return maxConnectionsTotal;
+    }
+
+    public void setMaxConnectionsTotal(Integer maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+    }
+
+    public Integer getIdleConnectionTimeoutMS() {
+        if (idleConnectionTimeoutMS == null || idleConnectionTimeoutMS < 1) {
+            return DEFAULT_IDLE_CONNECTION_TIMEOUT_MS;
+        }
+        return idleConnectionTimeoutMS;
+    }
+
+    public void setIdleConnectionTimeoutMS(Integer idleConnectionTimeoutMS) {
+        this.idleConnectionTimeoutMS = idleConnectionTimeoutMS;
+    }
+
+    public Integer getAsynchSearchThreadPoolSize() {
+        if (asynchSearchThreadPoolSize == null || asynchSearchThreadPoolSize < 1) {
+            return DEFAULT_ASYNCH_SEARCH_THREAD_POOL_SIZE;
+        }
+        return asynchSearchThreadPoolSize;
+    }
+
+    public void setAsynchSearchThreadPoolSize(Integer asynchSearchThreadPoolSize) {
+        this.asynchSearchThreadPoolSize = asynchSearchThreadPoolSize;
+    }
+
+    public Integer getAsynchSearchQueueSize() {
+        if (asynchSearchQueueSize == null || asynchSearchQueueSize < 1) {
+            return DEFAULT_ASYNCH_SEARCH_QUEUE_SIZE;
+        }
+        return asynchSearchQueueSize;
+    }
+
+    public void setAsynchSearchQueueSize(Integer asynchSearchQueueSize) {
+        this.asynchSearchQueueSize = asynchSearchQueueSize;
+    }
+
+    public Integer getAsynchSearchResultTTLMS() {
+        if (asynchSearchResultTTLMS == null || asynchSearchResultTTLMS < 1) {
+            return DEFAULT_ASYNCH_SEARCH_RESULT_TTL_MS;
+        }
+        return asynchSearchResultTTLMS;
+    }
+
+    public void setAsynchSearchResultTTLMS(Integer asynchSearchResultTTLMS) {
+        this.asynchSearchResultTTLMS = asynchSearchResultTTLMS;
+    }
+
+    public Integer getCircuitBreakerFailureThreshold() {
+        if (circuitBreakerFailureThreshold == null || circuitBreakerFailureThreshold < 1) {
+            return DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+        }
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(Integer circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    public Integer getCircuitBreakerProbeIntervalMS() {
+        if (circuitBreakerProbeIntervalMS == null || circuitBreakerProbeIntervalMS < 1) {
+            return DEFAULT_CIRCUIT_BREAKER_PROBE_INTERVAL_MS;
+        }
+        return circuitBreakerProbeIntervalMS;
+    }
+
+    public void setCircuitBreakerProbeIntervalMS(Integer circuitBreakerProbeIntervalMS) {
+        this.circuitBreakerProbeIntervalMS = circuitBreakerProbeIntervalMS;
+    }
+
+    public Integer getHedgeBudgetPercent() {
+        if (hedgeBudgetPercent == null || hedgeBudgetPercent < 1) {
+            return DEFAULT_HEDGE_BUDGET_PERCENT;
+        }
+        return hedgeBudgetPercent;
+    }
+
+    public void setHedgeBudgetPercent(Integer hedgeBudgetPercent) {
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+    }
+
+    public Integer getConnectTimeoutMS() {
+        if (connectTimeoutMS == null || connectTimeoutMS < 1) {
+            return DEFAULT_CONNECT_TIMEOUT_MS;
+        }
+        return connectTimeoutMS;
+    }
+
+    public void setConnectTimeoutMS(Integer connectTimeoutMS) {
+        this.connectTimeoutMS = connectTimeoutMS;
+    }
+
+    public Integer getAdaptiveTimeoutPercentile() {
+        if (adaptiveTimeoutPercentile == null || adaptiveTimeoutPercentile < 1) {
+            return DEFAULT_ADAPTIVE_TIMEOUT_PERCENTILE;
+        }
+        return adaptiveTimeoutPercentile;
+    }
+
+    public void setAdaptiveTimeoutPercentile(Integer adaptiveTimeoutPercentile) {
+        this.adaptiveTimeoutPercentile = adaptiveTimeoutPercentile;
+    }
+
+    public Double getAdaptiveTimeoutMultiplier() {
+        if (adaptiveTimeoutMultiplier == null || adaptiveTimeoutMultiplier <= 0) {
+            return DEFAULT_ADAPTIVE_TIMEOUT_MULTIPLIER;
+        }
+        return adaptiveTimeoutMultiplier;
+    }
+
+    public void setAdaptiveTimeoutMultiplier(Double adaptiveTimeoutMultiplier) {
+        this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+    }
+
+    public Integer getAdaptiveTimeoutMinMS() {
+        if (adaptiveTimeoutMinMS == null || adaptiveTimeoutMinMS < 1) {
+            return DEFAULT_ADAPTIVE_TIMEOUT_MIN_MS;
+        }
+        return adaptiveTimeoutMinMS;
+    }
+
+    public void setAdaptiveTimeoutMinMS(Integer adaptiveTimeoutMinMS) {
+        this.adaptiveTimeoutMinMS = adaptiveTimeoutMinMS;
+    }
+
+    public Integer getAdaptiveTimeoutMaxMS() {
+        if (adaptiveTimeoutMaxMS == null || adaptiveTimeoutMaxMS < 1) {
+            return DEFAULT_ADAPTIVE_TIMEOUT_MAX_MS;
+        }
+        return adaptiveTimeoutMaxMS;
+    }
+
+    public void setAdaptiveTimeoutMaxMS(Integer adaptiveTimeoutMaxMS) {
+        this.adaptiveTimeoutMaxMS = adaptiveTimeoutMaxMS;
+    }
+
+    public Integer getResultCacheMaxEntries() {
+        if (resultCacheMaxEntries == null || resultCacheMaxEntries < 1) {
+            return DEFAULT_RESULT_CACHE_MAX_ENTRIES;
+        }
+        return resultCacheMaxEntries;
+    }
+
+    public void setResultCacheMaxEntries(Integer resultCacheMaxEntries) {
+        this.resultCacheMaxEntries = resultCacheMaxEntries;
+    }
+
+    public Integer getResultCacheTTLMS() {
+        if (resultCacheTTLMS == null || resultCacheTTLMS < 1) {
+            return DEFAULT_RESULT_CACHE_TTL_MS;
+        }
+        return resultCacheTTLMS;
+    }
+
+    public void setResultCacheTTLMS(Integer resultCacheTTLMS) {
+        this.resultCacheTTLMS = resultCacheTTLMS;
+    }
+
+    public Integer getEntityCacheMaxEntries() {
+        if (entityCacheMaxEntries == null || entityCacheMaxEntries < 1) {
+            return DEFAULT_ENTITY_CACHE_MAX_ENTRIES;
+        }
+        return entityCacheMaxEntries;
+    }
+
+    public void setEntityCacheMaxEntries(Integer entityCacheMaxEntries) {
+        this.entityCacheMaxEntries = entityCacheMaxEntries;
+    }
+
+    public Integer getEntityCacheTTLMS() {
+        if (entityCacheTTLMS == null || entityCacheTTLMS < 1) {
+            return DEFAULT_ENTITY_CACHE_TTL_MS;
+        }
+        return entityCacheTTLMS;
+    }
+
+    public void setEntityCacheTTLMS(Integer entityCacheTTLMS) {
+        this.entityCacheTTLMS = entityCacheTTLMS;
+    }
+
+    public Integer getNegativeCacheMaxEntries() {
+        if (negativeCacheMaxEntries == null || negativeCacheMaxEntries < 1) {
+            return DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES;
+        }
+        return negativeCacheMaxEntries;
+    }
+
+    public void setNegativeCacheMaxEntries(Integer negativeCacheMaxEntries) {
+        this.negativeCacheMaxEntries = negativeCacheMaxEntries;
+    }
+
+    public Integer getNegativeCacheTTLMS() {
+        if (negativeCacheTTLMS == null || negativeCacheTTLMS < 1) {
+            return DEFAULT_NEGATIVE_CACHE_TTL_MS;
+        }
+        return negativeCacheTTLMS;
+    }
+
+    public void setNegativeCacheTTLMS(Integer negativeCacheTTLMS) {
+        this.negativeCacheTTLMS = negativeCacheTTLMS;
+    }
+
+    public Integer getResultCacheMaxStaleMS() {
+        if (resultCacheMaxStaleMS == null || resultCacheMaxStaleMS < 1) {
+            return DEFAULT_RESULT_CACHE_MAX_STALE_MS;
+        }
+        return resultCacheMaxStaleMS;
+    }
+
+    public void setResultCacheMaxStaleMS(Integer resultCacheMaxStaleMS) {
+        this.resultCacheMaxStaleMS = resultCacheMaxStaleMS;
+    }
+
+    public boolean isReturnAllAttributes() {
+        return returnAllAttributes;
+    }
+
+    public void setReturnAllAttributes(boolean returnAllAttributes) {
+        this.returnAllAttributes = returnAllAttributes;
+    }
+
+    public boolean isRetainResponseDSML() {
+        return retainResponseDSML;
+    }
+
+    public void setRetainResponseDSML(boolean retainResponseDSML) {
+        this.retainResponseDSML = retainResponseDSML;
+    }
+
+    public boolean isAdaptiveTimeouts() {
+        return adaptiveTimeouts;
+    }
+
+    public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+        this.adaptiveTimeouts = adaptiveTimeouts;
+    }
+
+    public boolean isResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(boolean resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public boolean isPersistentEntityCache() {
+        return persistentEntityCache;
+    }
+
+    public void setPersistentEntityCache(boolean persistentEntityCache) {
+        this.persistentEntityCache = persistentEntityCache;
+    }
+
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public boolean isEntityCache() {
+        return entityCache;
+    }
+
+    public void setEntityCache(boolean entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    public boolean isNegativeCache() {
+        return negativeCache;
+    }
+
+    public void setNegativeCache(boolean negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    public boolean isHedgedRequests() {
+        return hedgedRequests;
+    }
+
+    public void setHedgedRequests(boolean hedgedRequests) {
+        this.hedgedRequests = hedgedRequests;
+    }
+
     private String getClientHomeDir() {
         return clientHomeDir;
     }
@@ -115,5 +586,9 @@ public class HPDClientConfig {
     public String getHPDTrustStorePath() {
         return getClientHomeDir() + "/hpdtruststore.jks";
     }
+
+    public String getEntityCacheStorePath() {
+        return getClientHomeDir() + "/hpdentitycache.dat";
+    }
     
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.models.HPDInstanceModel;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Holds one long-lived <code>DefaultHttpClient</code> per HPD instance, each backed by a bounded
+ * pool of keep-alive connections, so the several DSML round trips of an enriched search reuse
+ * warm TCP/TLS connections.  Idle and expired connections are evicted in the background.
+ *
+ * @see HPDTLSContextCache
+ */
+public class HPDConnectionManager {
+
+    final static Logger log = Logger.getLogger(HPDConnectionManager.class.getName());
+
+    //How long to wait for a pooled connection, as read by the request director.  Set as a raw param like the other
+    //timeouts, since ConnManagerParams is deprecated.
+    static final String CONN_MANAGER_TIMEOUT = "http.conn-manager.timeout";
+
+    private final HPDClientConfig config;
+    private final ConcurrentHashMap<String, PooledClient> clients = new ConcurrentHashMap<String, PooledClient>();
+    private final HPDTLSContextCache tlsContextCache;
+    private final ScheduledExecutorService idleConnectionEvictor;
+
+    public HPDConnectionManager(HPDClientConfig config) {
+        this.config = config;
+        this.tlsContextCache = new HPDTLSContextCache(config);
+        long evictionIntervalMS = Math.max(1000, config.getIdleConnectionTimeoutMS() / 2);
+        this.idleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(new HPDThreadFactory("hpd-idle-connection-evictor"));
+        this.idleConnectionEvictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, evictionIntervalMS, evictionIntervalMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the pooled client for the given HPD instance, creating it on first use.  For TLS instances the
+     * client is rebuilt when the keystore or truststore on disk has changed.
+     */
+    public DefaultHttpClient getClient(HPDInstanceModel hpd) throws KeyStoreException, NoSuchAlgorithmException,
+            CertificateException, UnrecoverableKeyException, KeyManagementException, IOException {
+        SSLSocketFactory sslSocketFactory = null;
+        if (hpd.getAuthType() == Constants.PROVIDER_DIR_AUTH_TYPE_TLS) {
+            sslSocketFactory = tlsContextCache.getSocketFactory();
+        }
+        PooledClient pooledClient = clients.get(hpd.getId());
+        if (pooledClient == null || pooledClient.sslSocketFactory != sslSocketFactory) {
+            synchronized (clients) {
+                pooledClient = clients.get(hpd.getId());
+                if (pooledClient == null || pooledClient.sslSocketFactory != sslSocketFactory) {
+                    if (pooledClient != null) {
+                        retire(pooledClient);
+                    }
+                    pooledClient = new PooledClient(createClient(hpd, sslSocketFactory), sslSocketFactory);
+                    clients.put(hpd.getId(), pooledClient);
+                }
+            }
+        }
+        return pooledClient.client;
+    }
+
+    private DefaultHttpClient createClient(HPDInstanceModel hpd, SSLSocketFactory sslSocketFactory) {
+        SchemeRegistry schemeRegistry = SchemeRegistryFactory.createDefault();
+
+        //For TLS we present our client certificate and validate the remote HPD against our own truststore
+        if (sslSocketFactory != null) {
+            schemeRegistry.register(new Scheme("https", 443, sslSocketFactory));
+        }
+
+        ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(schemeRegistry);
+        connManager.setMaxTotal(config.getMaxConnectionsTotal());
+        connManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
+
+        HttpParams httpParams = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, config.getConnectTimeoutMS());
+        //Never wait forever for a pooled connection.  Each search narrows this to what's left of its deadline.
+        httpParams.setLongParameter(CONN_MANAGER_TIMEOUT, config.getConnectTimeoutMS());
+
+        DefaultHttpClient client = new DefaultHttpClient(connManager, httpParams);
+        client.setKeepAliveStrategy(new IdleTimeoutKeepAliveStrategy(config.getIdleConnectionTimeoutMS()));
+        log.log(Level.INFO, "Created pooled HTTP client for HPD {0} (maxTotal={1}, maxPerRoute={2})", new Object[]{hpd.getId(), config.getMaxConnectionsTotal(), config.getMaxConnectionsPerRoute()});
+        return client;
+    }
+
+    //A client built from TLS material that has since changed.  Close what's idle now and give in-flight requests
+    //an idle timeout's worth of time to finish before the pool is shut down.
+    private void retire(final PooledClient pooledClient) {
+        pooledClient.client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        idleConnectionEvictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                pooledClient.client.getConnectionManager().shutdown();
+            }
+        }, config.getIdleConnectionTimeoutMS(), TimeUnit.MILLISECONDS);
+    }
+
+    private void evictIdleConnections() {
+        for (PooledClient pooledClient : clients.values()) {
+            pooledClient.client.getConnectionManager().closeExpiredConnections();
+            pooledClient.client.getConnectionManager().closeIdleConnections(config.getIdleConnectionTimeoutMS(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes every pooled connection and stops the idle connection evictor.
+     */
+    public void shutdown() {
+        idleConnectionEvictor.shutdownNow();
+        synchronized (clients) {
+            for (PooledClient pooledClient : clients.values()) {
+                pooledClient.client.getConnectionManager().shutdown();
+            }
+            clients.clear();
+        }
+    }
+
+    private static class PooledClient {
+
+        private final DefaultHttpClient client;
+        private final SSLSocketFactory sslSocketFactory;  //The TLS material the client was built with, null for non-TLS instances
+
+        PooledClient(DefaultHttpClient client, SSLSocketFactory sslSocketFactory) {
+            this.client = client;
+            this.sslSocketFactory = sslSocketFactory;
+        }
+    }
+
+    //Honor the server's Keep-Alive header when it sends one, otherwise keep the connection around until our idle timeout
+    private static class IdleTimeoutKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final ConnectionKeepAliveStrategy serverStrategy = new DefaultConnectionKeepAliveStrategy();
+        private final long idleTimeoutMS;
+
+        IdleTimeoutKeepAliveStrategy(long idleTimeoutMS) {
+            this.idleTimeoutMS = idleTimeoutMS;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long serverKeepAliveMS = serverStrategy.getKeepAliveDuration(response, context);
+            return serverKeepAliveMS > 0 ? Math.min(serverKeepAliveMS, idleTimeoutMS) : idleTimeoutMS;
+        }
+    }
+}
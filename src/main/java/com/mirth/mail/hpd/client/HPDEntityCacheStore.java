@@ -0,0 +1,613 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.exceptions.HPDObjectWithNoUIDException;
+import com.mirth.mail.hpd.client.exceptions.UnexpectedLDAPObjectException;
+import com.mirth.mail.hpd.models.HPDBaseModel;
+import com.mirth.mail.hpd.models.HPDCredentialModel;
+import com.mirth.mail.hpd.models.HPDElectronicServiceModel;
+import com.mirth.mail.hpd.models.HPDEntityModel;
+import com.mirth.mail.hpd.models.HPDEntryRecord;
+import com.mirth.mail.hpd.models.HPDInstanceModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the entity cache on disk so it survives a restart.  The file is a header followed by records appended one
+ * after another, each the directory, the DN, when the entry expires, what kind of model it is and the entry's
+ * attributes, from which the model is built again when it's loaded.  A later record for the same entry replaces an
+ * earlier one, and once most of the file is replaced or expired it's compacted down to the live records.  Everything
+ * happens on one background thread, so searches never wait on the disk, and loading the file after a restart doesn't
+ * hold up startup.  If the disk can't keep up, entries are dropped rather than queued without limit; they're still
+ * cached in memory.
+ * <p>
+ * Only what the entity cache holds is kept: the orgs, services and credentials enrichment looks up by DN.  The
+ * providers and orgs a search finds in its first phase aren't, since they're found by search criteria rather than by
+ * DN, and are only cached, in memory, as part of the directory's search results.
+ */
+class HPDEntityCacheStore {
+
+    final static Logger log = Logger.getLogger(HPDEntityCacheStore.class.getName());
+
+    private static final int MAGIC = 0x48504443;           //"HPDC"
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte TYPE_ENTITY = 1;
+    private static final byte TYPE_SERVICE = 2;
+    private static final byte TYPE_CREDENTIAL = 3;
+    static final int COMPACTION_MIN_RECORDS = 1000;         //Not worth compacting a file smaller than this
+    static final int COMPACTION_CHECK_INTERVAL = 1000;      //Records appended between checks for whether to compact
+    static final int MAX_QUEUED_ENTRIES = 10000;            //Entries waiting to be written before more are dropped
+    private static final int MAX_COUNT = 64 * 1024;         //More attributes or values than this is a corrupt count
+    private static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024; //A longer value is a corrupt length
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //The cache in memory, which loaded entries go into
+    interface Sink {
+        //The HPD entries cached for directoryKey belong to, or null if it's no longer configured
+        HPDInstanceModel getInstance(String directoryKey);
+
+        void entryLoaded(String directoryKey, String dnKey, HPDBaseModel entry, long expiryTime);
+    }
+
+    private final File file;
+    private final Sink sink;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new HPDThreadFactory("hpd-entity-cache-store"));
+    private final AtomicInteger queuedEntries = new AtomicInteger();
+    private final AtomicInteger droppedEntries = new AtomicInteger();
+    private int generation;                 //Bumped by clear(), so a load under way knows to stop.  Guarded by this.
+
+    //Only touched on the writer thread
+    private DataOutputStream out;
+    private long outStart;                  //Where in the file out started writing
+    private final HashMap<String, IndexEntry> index = new HashMap<String, IndexEntry>();    //The latest record of every entry in the file
+    private int recordCount;
+    private int appendsSinceCheck;
+
+    private static class IndexEntry {
+        final long position;
+        final long expiryTime;
+
+        IndexEntry(long position, long expiryTime) {
+            this.position = position;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    //Called with the latest record of every live entry in the file, in the order they're in the file
+    private interface RecordHandler {
+        //false to stop reading
+        boolean handle(Record record) throws IOException;
+    }
+
+    HPDEntityCacheStore(File file, Sink sink) {
+        this.file = file;
+        this.sink = sink;
+    }
+
+    //Reads the file in the background, handing every entry that hasn't expired to the sink
+    void load() {
+        //A clear any time after this, even before the load starts, means it has nothing to hand over
+        final int loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                final long startTime = System.currentTimeMillis();
+                final int[] loaded = new int[1];
+                scan();
+                readLatest(new RecordHandler() {
+                    @Override
+                    public boolean handle(Record record) {
+                        HPDInstanceModel hpd = sink.getInstance(record.directoryKey);
+                        HPDBaseModel entry = hpd != null ? record.toEntry(hpd) : null;
+                        if (entry == null) {
+                            return true;
+                        }
+                        //Checked and handed over together, so nothing loaded lands after a clear
+                        synchronized (HPDEntityCacheStore.this) {
+                            if (generation != loadGeneration) {
+                                return false;
+                            }
+                            sink.entryLoaded(record.directoryKey, record.dnKey, entry, record.expiryTime);
+                        }
+                        loaded[0]++;
+                        return true;
+                    }
+                });
+                log.log(Level.INFO, "Loaded {0} cached entries from {1} in {2}ms", new Object[]{loaded[0], file, System.currentTimeMillis() - startTime});
+                compactIfWorthIt();
+            }
+        });
+    }
+
+    //Queues the entries to be written.  They're written as they are when the writer gets to them, so they mustn't be
+    //changed after they're handed over.
+    void append(final String directoryKey, final List<? extends HPDBaseModel> entries, final long expiryTime) {
+        final int count = entries.size();
+        if (count == 0) {
+            return;
+        }
+        if (queuedEntries.addAndGet(count) > MAX_QUEUED_ENTRIES) {
+            queuedEntries.addAndGet(-count);
+            log.log(Level.FINE, "Dropped {0} entries the disk couldn''t keep up with, {1} so far", new Object[]{count, droppedEntries.addAndGet(count)});
+            return;
+        }
+        boolean queued = submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    appendRecords(directoryKey, entries, expiryTime);
+                } finally {
+                    queuedEntries.addAndGet(-count);
+                }
+            }
+        });
+        if (!queued) {
+            queuedEntries.addAndGet(-count);
+        }
+    }
+
+    //Forgets everything on disk.  A load that's under way stops handing over entries as soon as this returns, so the
+    //caller can clear the cache in memory straight after.
+    void clear() {
+        synchronized (this) {
+            generation++;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+                clearFile();
+            }
+        });
+    }
+
+    //Writes out anything still queued, then stops
+    void close() {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Entries that couldn't be queued because too many were already waiting to be written
+    int getDroppedEntries() {
+        return droppedEntries.get();
+    }
+
+    private boolean submit(Runnable task) {
+        try {
+            writer.execute(task);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            //Closed
+            return false;
+        }
+    }
+
+    private void appendRecords(String directoryKey, List<? extends HPDBaseModel> entries, long expiryTime) {
+        try {
+            DataOutputStream output = getOutput();
+            for (HPDBaseModel entry : entries) {
+                Record record = Record.fromEntry(directoryKey, entry, expiryTime);
+                if (record != null) {
+                    long position = outStart + output.size();
+                    record.write(output);
+                    index.put(record.getKey(), new IndexEntry(position, expiryTime));
+                    recordCount++;
+                    appendsSinceCheck++;
+                }
+            }
+            output.flush();
+        } catch (IOException io) {
+            log.log(Level.WARNING, "Unable to write cached entries to " + file, io);
+            //What made it to disk is whatever the next scan finds
+            closeOutput();
+            scan();
+        }
+        if (appendsSinceCheck >= COMPACTION_CHECK_INTERVAL) {
+            appendsSinceCheck = 0;
+            compactIfWorthIt();
+        }
+    }
+
+    //Indexes the latest record of every entry in the file.  A file that isn't ours is deleted, and a record cut short
+    //by a crash is cut off the end so appends after it can be read back.
+    private void scan() {
+        closeOutput();
+        index.clear();
+        recordCount = 0;
+        if (!file.exists()) {
+            return;
+        }
+        long validLength = 0;
+        CountingInputStream counter = null;
+        try {
+            counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            DataInputStream in = new DataInputStream(counter);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.log(Level.WARNING, "{0} isn't an entity cache file this version can read, starting over", file);
+                counter.close();
+                counter = null;
+                clearFile();
+                return;
+            }
+            validLength = HEADER_LENGTH;
+            while (true) {
+                Record record = Record.read(in);
+                index.put(record.getKey(), new IndexEntry(validLength, record.expiryTime));
+                recordCount++;
+                validLength = counter.getCount();
+            }
+        } catch (EOFException eof) {
+            //The end, or a record that was only partly written
+        } catch (IOException io) {
+            log.log(Level.WARNING, "Unable to read cached entries from " + file + ", keeping what was read", io);
+        } finally {
+            closeQuietly(counter);
+        }
+        if (validLength < HEADER_LENGTH) {
+            clearFile();
+        } else if (validLength < file.length()) {
+            truncate(validLength);
+        }
+    }
+
+    //Streams the file, handing the handler the records scan() indexed as the latest for their entry, if they haven't
+    //expired.  Only the record being handled is ever in memory.
+    private void readLatest(RecordHandler handler) {
+        if (index.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        CountingInputStream counter = null;
+        try {
+            counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            DataInputStream in = new DataInputStream(counter);
+            in.readInt();
+            in.readInt();
+            //Stops at the end of what scan() found to be whole records, so anything appended since isn't half read
+            long end = 0;
+            for (IndexEntry entry : index.values()) {
+                end = Math.max(end, entry.position);
+            }
+            while (counter.getCount() <= end) {
+                long position = counter.getCount();
+                Record record = Record.read(in);
+                IndexEntry latest = index.get(record.getKey());
+                if (latest != null && latest.position == position && record.expiryTime > now && !handler.handle(record)) {
+                    return;
+                }
+            }
+        } catch (IOException io) {
+            log.log(Level.WARNING, "Unable to read cached entries from " + file, io);
+        } finally {
+            closeQuietly(counter);
+        }
+    }
+
+    //Rewrites the file with just the live records once they're less than half of it
+    private void compactIfWorthIt() {
+        long now = System.currentTimeMillis();
+        for (Iterator<IndexEntry> it = index.values().iterator(); it.hasNext();) {
+            if (it.next().expiryTime <= now) {
+                it.remove();
+            }
+        }
+        if (recordCount < COMPACTION_MIN_RECORDS || recordCount < index.size() * 2) {
+            return;
+        }
+        closeOutput();
+        long startTime = System.currentTimeMillis();
+        int before = recordCount;
+        File compacted = new File(file.getPath() + ".compact");
+        final HashMap<String, IndexEntry> compactedIndex = new HashMap<String, IndexEntry>();
+        DataOutputStream compactedOut = null;
+        try {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)));
+            compactedOut = output;
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            readLatest(new RecordHandler() {
+                @Override
+                public boolean handle(Record record) throws IOException {
+                    compactedIndex.put(record.getKey(), new IndexEntry(output.size(), record.expiryTime));
+                    record.write(output);
+                    return true;
+                }
+            });
+            output.close();
+            compactedOut = null;
+            if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+                throw new IOException("Unable to replace " + file + " with " + compacted);
+            }
+            index.clear();
+            index.putAll(compactedIndex);
+            recordCount = compactedIndex.size();
+            log.log(Level.INFO, "Compacted {0} from {1} to {2} records in {3}ms", new Object[]{file, before, recordCount, System.currentTimeMillis() - startTime});
+        } catch (IOException io) {
+            log.log(Level.WARNING, "Unable to compact " + file, io);
+            closeQuietly(compactedOut);
+            compacted.delete();
+            //What's on disk is still good, so carry on from it
+            scan();
+        }
+    }
+
+    private DataOutputStream getOutput() throws IOException {
+        if (out == null) {
+            boolean newFile = !file.exists() || file.length() == 0;
+            if (newFile && file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            outStart = newFile ? 0 : file.length();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (newFile) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+        }
+        return out;
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException io) {
+                log.log(Level.WARNING, "Unable to close " + file, io);
+            }
+            out = null;
+        }
+    }
+
+    private void clearFile() {
+        index.clear();
+        recordCount = 0;
+        if (file.exists() && !file.delete()) {
+            log.log(Level.WARNING, "Unable to delete {0}", file);
+        }
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException io) {
+            log.log(Level.WARNING, "Unable to cut the partly written record off the end of " + file, io);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException io) {
+                    //Nothing to do
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException io) {
+                //Nothing to do
+            }
+        }
+    }
+
+    //How far into the file we've read, so records can be found again by where they start
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * One entry as it's kept on disk: the directory and DN it's cached under, when it expires, what kind of model it
+     * is, and its DN and attributes.  Strings that can be long, which attribute values can, are written as a length
+     * and UTF-8 bytes rather than with writeUTF(), which can't take more than 64K.
+     */
+    private static class Record {
+        final String directoryKey;
+        final String dnKey;
+        final long expiryTime;
+        final byte type;
+        final String dn;
+        final Map<String, List<String>> attrs;
+
+        Record(String directoryKey, String dnKey, long expiryTime, byte type, String dn, Map<String, List<String>> attrs) {
+            this.directoryKey = directoryKey;
+            this.dnKey = dnKey;
+            this.expiryTime = expiryTime;
+            this.type = type;
+            this.dn = dn;
+            this.attrs = attrs;
+        }
+
+        //null for a kind of model the entity cache doesn't hold
+        static Record fromEntry(String directoryKey, HPDBaseModel entry, long expiryTime) {
+            byte type;
+            if (entry instanceof HPDEntityModel) {
+                type = TYPE_ENTITY;
+            } else if (entry instanceof HPDElectronicServiceModel) {
+                type = TYPE_SERVICE;
+            } else if (entry instanceof HPDCredentialModel) {
+                type = TYPE_CREDENTIAL;
+            } else {
+                return null;
+            }
+            return new Record(directoryKey, entry.getDN().toLowerCase(), expiryTime, type, entry.getDN(), entry.getEntityAttrs());
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            String directoryKey = in.readUTF();
+            String dnKey = in.readUTF();
+            long expiryTime = in.readLong();
+            byte type = in.readByte();
+            String dn = readString(in);
+            int attrCount = readCount(in, dnKey);
+            Map<String, List<String>> attrs = new LinkedHashMap<String, List<String>>();
+            for (int i = 0; i < attrCount; i++) {
+                String name = in.readUTF();
+                int valueCount = readCount(in, dnKey);
+                List<String> values = new ArrayList<String>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(readString(in));
+                }
+                attrs.put(name, values);
+            }
+            return new Record(directoryKey, dnKey, expiryTime, type, dn, attrs);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(directoryKey);
+            out.writeUTF(dnKey);
+            out.writeLong(expiryTime);
+            out.writeByte(type);
+            writeString(out, dn);
+            out.writeInt(attrs.size());
+            for (Map.Entry<String, List<String>> attr : attrs.entrySet()) {
+                out.writeUTF(attr.getKey());
+                out.writeInt(attr.getValue().size());
+                for (String value : attr.getValue()) {
+                    writeString(out, value);
+                }
+            }
+        }
+
+        //null if it can't be built again, eg the model no longer accepts it
+        HPDBaseModel toEntry(HPDInstanceModel hpd) {
+            HPDEntryRecord entry = new HPDEntryRecord(dn);
+            for (Map.Entry<String, List<String>> attr : attrs.entrySet()) {
+                entry.addAttr(attr.getKey()).addAll(attr.getValue());
+            }
+            try {
+                switch (type) {
+                    case TYPE_ENTITY:
+                        return new HPDEntityModel(hpd, entry);
+                    case TYPE_SERVICE:
+                        return new HPDElectronicServiceModel(hpd, entry);
+                    case TYPE_CREDENTIAL:
+                        return new HPDCredentialModel(hpd, entry);
+                    default:
+                        log.log(Level.FINE, "Skipping cached entry {0} of unknown type {1}", new Object[]{dnKey, type});
+                        return null;
+                }
+            } catch (UnexpectedLDAPObjectException lox) {
+                log.log(Level.FINE, "Skipping cached entry " + dnKey + " that can't be read back", lox);
+            } catch (HPDObjectWithNoUIDException ux) {
+                log.log(Level.FINE, "Skipping cached entry " + dnKey + " that can't be read back", ux);
+            }
+            return null;
+        }
+
+        String getKey() {
+            return directoryKey + "|" + dnKey;
+        }
+
+        private static int readCount(DataInputStream in, String dnKey) throws IOException {
+            int count = in.readInt();
+            if (count < 0 || count > MAX_COUNT) {
+                throw new IOException("Corrupt record for " + dnKey + ", count " + count);
+            }
+            return count;
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_VALUE_LENGTH) {
+                throw new IOException("Corrupt record, string length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
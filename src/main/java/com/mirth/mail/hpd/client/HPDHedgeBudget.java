@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+/**
+ * Caps hedged requests to an HPD at a percentage of the calls we make to it.  Every call earns a fraction of a hedge
+ * and every hedge spends a whole one.  The savings are capped so a quiet spell can't bank a burst of hedges.
+ */
+class HPDHedgeBudget {
+
+    private static final double MAX_BALANCE = 10;
+
+    private final double earnedPerCall;
+    private double balance;
+
+    HPDHedgeBudget(int budgetPercent) {
+        this.earnedPerCall = budgetPercent / 100.0;
+    }
+
+    synchronized void callMade() {
+        balance = Math.min(MAX_BALANCE, balance + earnedPerCall);
+    }
+
+    //Takes a hedge out of the budget if there's one to spend
+    synchronized boolean tryHedge() {
+        if (balance < 1) {
+            return false;
+        }
+        balance--;
+        return true;
+    }
+}
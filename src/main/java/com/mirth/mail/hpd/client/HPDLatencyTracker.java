@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import java.util.Arrays;
+
+/**
+ * How long recent calls to an HPD took to answer, so we can tell what "slow" means for that HPD.  Only the most recent
+ * calls are kept, so the numbers follow the HPD as it speeds up or slows down.
+ */
+public class HPDLatencyTracker {
+
+    public static final int SAMPLE_SIZE = 100;     //Calls we remember
+    public static final int MIN_SAMPLES = 20;      //Calls we need to have seen before we'll guess at a quantile
+
+    private final long[] samples = new long[SAMPLE_SIZE];
+    private int count;
+    private int next;
+
+    public synchronized void record(long latencyMS) {
+        samples[next] = latencyMS;
+        next = (next + 1) % SAMPLE_SIZE;
+        if (count < SAMPLE_SIZE) {
+            count++;
+        }
+    }
+
+    //The latency that the given fraction of recent calls came in under, eg 0.95 for p95.  -1 until we've seen MIN_SAMPLES calls.
+    public long getQuantile(double quantile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+}
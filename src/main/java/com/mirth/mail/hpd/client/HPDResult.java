@@ -39,10 +39,16 @@ public class HPDResult implements Serializable {
     public static final int HPD_MISSING_OR_INVALID_CERT = -13;
     public static final int HPD_CONNECTION_REFUSED = -14;
     public static final int HPD_TLS_ERROR = -15;
+    public static final int HPD_ASYNCH_SEARCH_REJECTED = -16;
+    public static final int HPD_CIRCUIT_OPEN = -17;
+    //The search deadline ran out before the HPD was done.  Unlike the timeouts above, it isn't held against the HPD.
+    public static final int HPD_DEADLINE_EXCEEDED = -18;
     
     private String resultMsg;
     private int resultCode;
     private String responseDSML;
+    //The HPD stopped short of every match (its sizeLimit, timeLimit or adminLimit), so there may be more than was returned
+    private boolean truncated;
     
     public HPDResult() {        
     }
@@ -60,6 +66,14 @@ public class HPDResult implements Serializable {
         log.log(Level.INFO, "HPDResult: resultCode={0} resultMsg={1} responseDSML={2}", new Object[]{resultCode,resultMsg,responseDSML});
     }    
 
+    //A copy of a result that's already been logged, so it isn't logged again
+    public HPDResult(HPDResult result) {
+        this.resultCode = result.resultCode;
+        this.resultMsg = result.resultMsg;
+        this.responseDSML = result.responseDSML;
+        this.truncated = result.truncated;
+    }
+
     public String getResultMsg() {
         return resultMsg;
     }
@@ -83,5 +97,13 @@ public class HPDResult implements Serializable {
     public void setResponseDSML(String responseDSML) {
         this.responseDSML = responseDSML;
     }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
     
 }
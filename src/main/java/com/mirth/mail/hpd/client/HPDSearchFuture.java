@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RunnableFuture;
+
+/**
+ * The CompletableFuture behind each search, so callers can compose work onto a search without holding a thread in
+ * get() while they wait.  Unlike a plain CompletableFuture it can be handed to an executor to run the search itself,
+ * and cancelling it interrupts the search if it's running, as cancelling a FutureTask would.
+ */
+class HPDSearchFuture<V> extends CompletableFuture<V> implements RunnableFuture<V> {
+
+    private final Callable<V> callable;
+    private final Object runnerLock = new Object();
+    private Thread runner;      //The thread running the search, while it runs.  Guarded by runnerLock.
+
+    //A future that's completed by calling complete() rather than by being run
+    HPDSearchFuture() {
+        this.callable = null;
+    }
+
+    HPDSearchFuture(Callable<V> callable) {
+        this.callable = callable;
+    }
+
+    @Override
+    public void run() {
+        if (callable == null) {
+            throw new IllegalStateException("HPDSearchFuture is completed with complete(), not run");
+        }
+        synchronized (runnerLock) {
+            //Cancelled before it got a thread
+            if (isDone()) {
+                return;
+            }
+            runner = Thread.currentThread();
+        }
+        try {
+            complete(callable.call());
+        } catch (Throwable t) {
+            completeExceptionally(t);
+        } finally {
+            synchronized (runnerLock) {
+                runner = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && mayInterruptIfRunning) {
+            //Under the lock so we can't interrupt whatever the thread goes on to run after this search
+            synchronized (runnerLock) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+        return cancelled;
+    }
+}
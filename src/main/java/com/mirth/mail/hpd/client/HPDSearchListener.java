@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.models.HPDEntityModel;
+
+/**
+ * Hears about a federated search as each directory answers, so results from fast directories can be shown while slow
+ * ones are still in flight.  Calls for one search are made one at a time, in order, on a callback thread shared with
+ * other searches' listeners, so hand anything slow off to another thread.
+ */
+public interface HPDSearchListener {
+
+    //A directory finished, failed or missed the federated search deadline
+    void onDirectoryResult(String directoryId, HPDSearchResult directoryResult);
+
+    //An entity from the directory that just answered.  Stops once the search's resultSizeLimit has been reached.
+    //Entities are sent as their directory answers, but the merged result takes them from each directory in turn, so when
+    //the directories found more than the limit between them some of the entities sent may not be in the merged result.
+    void onEntity(HPDEntityModel entity);
+
+    //Every directory has answered.  The result is the same merged result the search returns.
+    void onComplete(HPDSearchResult result);
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+/**
+ * The searches made against a directory to answer an HPDSearchRequest.  The entity search comes first and the others
+ * fill in what the entities it found refer to.
+ */
+public enum HPDSearchPhase {
+    ENTITIES,                   //PHASE 1 - The search that was asked for
+    AFFILIATED_PROVIDERS,       //Providers related to the orgs from PHASE 1, for ProvidersAffiliatedToOrg searches
+    RELATIONSHIPS,              //PHASE 2a - Relationships the entities take part in
+    AFFILIATED_ORGS,            //PHASE 2b - Orgs referred to by those relationships
+    SERVICES,                   //PHASE 2c - Services referred to by the entities and relationships
+    CREDENTIALS;                //PHASE 3 - Credentials referred to by the entities
+
+    //SKIPPED phases ran out of search deadline.  TIMED_OUT phases hit the HPD's own request timeout.
+    public enum Status {DONE, SKIPPED, TIMED_OUT, FAILED};
+}
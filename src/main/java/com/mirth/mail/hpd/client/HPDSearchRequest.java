@@ -13,13 +13,20 @@
  */
 package com.mirth.mail.hpd.client;
 
+import com.mirth.mail.hpd.models.HPDCredentialModel;
+import com.mirth.mail.hpd.models.HPDElectronicServiceModel;
+import com.mirth.mail.hpd.models.HPDEntityModel;
 import com.mirth.mail.hpd.models.HPDInstanceModel;
+import com.mirth.mail.hpd.models.HPDOrgToProvRelationshipModel;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
 
 public class HPDSearchRequest implements Serializable {
@@ -46,15 +53,19 @@ public class HPDSearchRequest implements Serializable {
     //This is the body of the DSML search request.  Essentially a template used to wrap the innards of the request formed
     //based on the criteria passed in the search filter
     private final static String searchRequestBody =
-            "<searchRequest dn='%s%s' scope='%s' derefAliases='derefFindingBaseObj' requestID='%s'> "
+            "<searchRequest dn='%s%s' scope='%s' derefAliases='derefFindingBaseObj' sizeLimit='%s' timeLimit='%s' requestID='%s'> "
                     + "   <filter>  "
                     + "        %s"
                     + "   </filter>  "
+                    + "%s"
                     + "</searchRequest>";
 
     private HPDSearchScope searchScope;             //Which Entities do we include in our search.
     private List<String> directoryIds;              //Which Directories do we search.  Defaults to the Local Directory.
-    public int resultSizeLimit;                     //How many Providers will we return max
+    public int resultSizeLimit;                     //How many Providers will we return max.  Sent to the HPD as the DSML sizeLimit; 0 means no limit
+    private int timeLimitSeconds;                   //DSML timeLimit for the search.  0 means use the request timeout of the directory being searched
+    private boolean returnAllAttributes;            //Ask the HPD for every attribute instead of just the ones our models read
+    private long deadlineMillis;                    //When the whole search has to be done by, as System.currentTimeMillis().  0 means the federated search timeout from now
 
     private String uid;                             //For searches by the 'uid' attribute.  The UID for HPD is by standard comprised of the authorityId + ":" + entityUID
     private HPDSearchMode nameSearchMode;           //For Searches by Name, what mode will we use.  This mode will be applied regardless of whether
@@ -97,6 +108,45 @@ public class HPDSearchRequest implements Serializable {
         init();
     }
 
+    //Copy with its own lists, so the caller can keep changing theirs
+    public HPDSearchRequest(HPDSearchRequest request) {
+        this.searchScope = request.searchScope;
+        this.directoryIds = request.directoryIds == null ? null : new ArrayList<String>(request.directoryIds);
+        this.resultSizeLimit = request.resultSizeLimit;
+        this.timeLimitSeconds = request.timeLimitSeconds;
+        this.returnAllAttributes = request.returnAllAttributes;
+        this.deadlineMillis = request.deadlineMillis;
+        this.uid = request.uid;
+        this.nameSearchMode = request.nameSearchMode;
+        this.nameSearchText = request.nameSearchText;
+        this.lastName = request.lastName;
+        this.firstName = request.firstName;
+        this.npi = request.npi;
+        this.orgId = request.orgId;
+        this.registeredName = request.registeredName;
+        this.description = request.description;
+        this.gender = request.gender;
+        this.languageCode = request.languageCode;
+        this.addressSearchText = request.addressSearchText;
+        this.addressSearchText2 = request.addressSearchText2;
+        this.postalCodeText = request.postalCodeText;
+        this.stateOrProvinceName = request.stateOrProvinceName;
+        this.specializationText = request.specializationText;
+        this.specializationCode = request.specializationCode;
+        this.faxNumber = request.faxNumber;
+        this.telephoneNumber = request.telephoneNumber;
+        this.emailAddress = request.emailAddress;
+        this.serviceAddressText = request.serviceAddressText;
+        this.serviceSearchMode = request.serviceSearchMode;
+        this.serviceSearchProfile = request.serviceSearchProfile;
+        this.serviceDNs = request.serviceDNs == null ? null : new ArrayList<String>(request.serviceDNs);
+        this.credentialDNs = request.credentialDNs == null ? null : new ArrayList<String>(request.credentialDNs);
+        this.relationshipProviderDNs = request.relationshipProviderDNs == null ? null : new ArrayList<String>(request.relationshipProviderDNs);
+        this.relationshipOrgDNs = request.relationshipOrgDNs == null ? null : new ArrayList<String>(request.relationshipOrgDNs);
+        this.organizationDNs = request.organizationDNs == null ? null : new ArrayList<String>(request.organizationDNs);
+        this.individualProviderDNs = request.individualProviderDNs == null ? null : new ArrayList<String>(request.individualProviderDNs);
+    }
+
     public HPDSearchRequest(HPDSearchScope searchScope, String directoryId) {
         init();
         getDirectoryIds().add(directoryId);
@@ -865,7 +915,223 @@ public class HPDSearchRequest implements Serializable {
         return false;
     }
 
+    public int getResultSizeLimit() {
+        return resultSizeLimit;
+    }
+
+    public void setResultSizeLimit(int resultSizeLimit) {
+        this.resultSizeLimit = resultSizeLimit;
+    }
+
+    public int getTimeLimitSeconds() {
+        return timeLimitSeconds;
+    }
+
+    public void setTimeLimitSeconds(int timeLimitSeconds) {
+        this.timeLimitSeconds = timeLimitSeconds;
+    }
+
+    public boolean isReturnAllAttributes() {
+        return returnAllAttributes;
+    }
+
+    public void setReturnAllAttributes(boolean returnAllAttributes) {
+        this.returnAllAttributes = returnAllAttributes;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    //Every phase of the search, in every directory, only gets whatever is left of the time until the deadline
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * A SHA-256 hash of everything that decides what this search returns from a directory, so two requests that ask
+     * the same thing get the same fingerprint.  Text is trimmed and lower cased since HPD attributes match without
+     * regard to case, and DN lists are sorted.  Which directories to search and how long to wait aren't included.
+     */
+    public String getCriteriaFingerprint() {
+        StringBuilder criteria = new StringBuilder();
+        appendCriterion(criteria, "searchScope", searchScope);
+        appendCriterion(criteria, "resultSizeLimit", resultSizeLimit);
+        appendCriterion(criteria, "returnAllAttributes", returnAllAttributes);
+        appendCriterion(criteria, "uid", uid);
+        appendCriterion(criteria, "nameSearchMode", nameSearchMode);
+        appendCriterion(criteria, "nameSearchText", nameSearchText);
+        appendCriterion(criteria, "lastName", lastName);
+        appendCriterion(criteria, "firstName", firstName);
+        appendCriterion(criteria, "npi", npi);
+        appendCriterion(criteria, "orgId", orgId);
+        appendCriterion(criteria, "registeredName", registeredName);
+        appendCriterion(criteria, "description", description);
+        appendCriterion(criteria, "gender", gender);
+        appendCriterion(criteria, "languageCode", languageCode);
+        appendCriterion(criteria, "addressSearchText", addressSearchText);
+        appendCriterion(criteria, "addressSearchText2", addressSearchText2);
+        appendCriterion(criteria, "postalCodeText", postalCodeText);
+        appendCriterion(criteria, "stateOrProvinceName", stateOrProvinceName);
+        appendCriterion(criteria, "specializationText", specializationText);
+        appendCriterion(criteria, "specializationCode", specializationCode);
+        appendCriterion(criteria, "faxNumber", faxNumber);
+        appendCriterion(criteria, "telephoneNumber", telephoneNumber);
+        appendCriterion(criteria, "emailAddress", emailAddress);
+        appendCriterion(criteria, "serviceAddressText", serviceAddressText);
+        appendCriterion(criteria, "serviceSearchMode", serviceSearchMode);
+        appendCriterion(criteria, "serviceSearchProfile", serviceSearchProfile);
+        appendCriterion(criteria, "serviceDNs", serviceDNs);
+        appendCriterion(criteria, "credentialDNs", credentialDNs);
+        appendCriterion(criteria, "relationshipProviderDNs", relationshipProviderDNs);
+        appendCriterion(criteria, "relationshipOrgDNs", relationshipOrgDNs);
+        appendCriterion(criteria, "organizationDNs", organizationDNs);
+        appendCriterion(criteria, "individualProviderDNs", individualProviderDNs);
+        return DigestUtils.sha256Hex(criteria.toString());
+    }
+
+    /**
+     * For a search that does nothing but look an entry up by NPI, UID or Direct address, which of those it is and the
+     * value looked up, eg "npi=1234567890".  null for any other search, including a lookup narrowed by more criteria,
+     * since finding nothing for that says nothing about the identifier on its own.
+     */
+    public String getIdentifierLookup() {
+        String lookup = null;
+        int identifiers = 0;
+        if (StringUtils.isNotBlank(npi)) {
+            lookup = "npi=" + npi.trim().toLowerCase(Locale.ENGLISH);
+            identifiers++;
+        }
+        if (StringUtils.isNotBlank(uid)) {
+            lookup = "uid=" + uid.trim().toLowerCase(Locale.ENGLISH);
+            identifiers++;
+        }
+        if (StringUtils.isNotBlank(serviceAddressText)) {
+            lookup = "serviceAddressText=" + serviceAddressText.trim().toLowerCase(Locale.ENGLISH);
+            identifiers++;
+        }
+        if (identifiers != 1) {
+            return null;
+        }
+        //Same identifier and settings but no other criteria.  If that fingerprints the same, there weren't any.
+        HPDSearchRequest identifierOnly = new HPDSearchRequest(searchScope, null);
+        identifierOnly.npi = npi;
+        identifierOnly.uid = uid;
+        identifierOnly.serviceAddressText = serviceAddressText;
+        identifierOnly.resultSizeLimit = resultSizeLimit;
+        identifierOnly.returnAllAttributes = returnAllAttributes;
+        identifierOnly.nameSearchMode = nameSearchMode;
+        identifierOnly.serviceSearchMode = serviceSearchMode;
+        identifierOnly.serviceSearchProfile = serviceSearchProfile;
+        return identifierOnly.getCriteriaFingerprint().equals(getCriteriaFingerprint()) ? lookup : null;
+    }
+
+    //Unset criteria are left out altogether so a null and an empty list fingerprint the same
+    private static void appendCriterion(StringBuilder criteria, String name, Object value) {
+        String canonicalValue;
+        if (value instanceof List) {
+            List<String> values = new ArrayList<String>();
+            for (Object listValue : (List<?>) value) {
+                if (listValue != null && StringUtils.isNotBlank(listValue.toString())) {
+                    values.add(listValue.toString().trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+            if (values.isEmpty()) {
+                return;
+            }
+            Collections.sort(values);
+            canonicalValue = values.toString();
+        } else {
+            if (value == null || StringUtils.isBlank(value.toString())) {
+                return;
+            }
+            canonicalValue = value.toString().trim().toLowerCase(Locale.ENGLISH);
+        }
+        //Lengths keep a value containing our separators from running into the next criterion
+        criteria.append(name).append('=').append(canonicalValue.length()).append(':').append(canonicalValue).append(';');
+    }
+
+    //The attributes the model built from this search's results reads.  null means there's no model to project for.
+    private String[] getDSMLAttributes() {
+        switch (getSearchScope()) {
+            case AllEntities:
+            case IndividualProvidersOnly:
+            case OrgsOnly:
+                return HPDEntityModel.DSML_ATTRIBUTES;
+            case CredentialsOnly:
+                return HPDCredentialModel.DSML_ATTRIBUTES;
+            case ProvidersAffiliatedToOrg:
+            case HasAProviderRelationshipsOnly:
+            case HasAnOrgRelationshipsOnly:
+                return HPDOrgToProvRelationshipModel.DSML_ATTRIBUTES;
+            case ServicesOnly:
+                return HPDElectronicServiceModel.DSML_ATTRIBUTES;
+            default:
+                return null;
+        }
+    }
+
+    //Without an attributes element the HPD sends back everything it has on each entry, certificates and all
+    private String toDSMLAttributes(HPDClientConfig config) {
+        String[] attributes = getDSMLAttributes();
+        if (isReturnAllAttributes() || config.isReturnAllAttributes() || attributes == null) {
+            return "";
+        }
+        StringBuilder attributesDSML = new StringBuilder("<attributes>");
+        for (String attribute : attributes) {
+            attributesDSML.append("<attribute name='").append(attribute).append("'/>");
+        }
+        return attributesDSML.append("</attributes>").toString();
+    }
+
+    //There's no point asking the HPD to keep working on a search after we've stopped waiting for the answer.  Rounding what's
+    //left of the deadline down has the HPD send what it has found just before we would give up on it.
+    private int getDSMLTimeLimit(HPDInstanceModel hpd, HPDClientConfig config, long deadline) {
+        int timeLimit = timeLimitSeconds > 0 ? timeLimitSeconds : Math.max(1, (config.getRequestTimeoutMS(hpd) + 999) / 1000);
+        long remainingSeconds = (deadline - System.currentTimeMillis()) / 1000;
+        return (int) Math.max(1, Math.min(timeLimit, remainingSeconds));
+    }
+
     public final String toDSML(HPDInstanceModel hpd, HPDClientConfig config) {
+        return toDSML(hpd, config, Long.MAX_VALUE);
+    }
+
+    //The DSML for this search, with its timeLimit cut down to fit in what's left before the deadline
+    public final String toDSML(HPDInstanceModel hpd, HPDClientConfig config, long deadline) {
+        //Generate an random requestId to use for the batchRequest and the searchRequest.  Keeping these the same for now.
+        String randomRequestId = HPDUtil.generateRequestId();
+        //Generate batchRequestID
+        String batchRequestId = randomRequestId;
+        //Generate searchRequestID
+        String searchRequetID = randomRequestId;
+        return toSOAPRequest(hpd, config.getSoapRequestTemplate(), batchRequestId, toDSMLSearchRequest(hpd, config, searchRequetID, deadline));
+    }
+
+    //The requestID given to the searchRequest at the given position in a batch built by toBatchDSML()
+    public static String getBatchedSearchRequestId(String batchRequestId, int index) {
+        return batchRequestId + "-" + index;
+    }
+
+    //Packs several searchRequests against the same HPD into a single batchRequest the server may process in parallel.
+    //Each searchRequest gets its own requestID (see getBatchedSearchRequestId()) so the searchResponses can be told apart.
+    public static String toBatchDSML(HPDInstanceModel hpd, HPDClientConfig config, List<HPDSearchRequest> searchRequests, String batchRequestId) {
+        return toBatchDSML(hpd, config, searchRequests, batchRequestId, Long.MAX_VALUE);
+    }
+
+    public static String toBatchDSML(HPDInstanceModel hpd, HPDClientConfig config, List<HPDSearchRequest> searchRequests, String batchRequestId, long deadline) {
+        StringBuilder searchRequestsDSML = new StringBuilder();
+        for (int i = 0; i < searchRequests.size(); i++) {
+            searchRequestsDSML.append(searchRequests.get(i).toDSMLSearchRequest(hpd, config, getBatchedSearchRequestId(batchRequestId, i), deadline));
+        }
+        String requestBody = config.getSoapRequestTemplate();
+        //DSML processes a batch sequentially unless told otherwise.  Leave it be if the template already says how it wants it done.
+        if (!requestBody.contains("processing=")) {
+            requestBody = requestBody.replaceFirst("<(\\w+:)?batchRequest\\b", "<$1batchRequest processing='parallel'");
+        }
+        return toSOAPRequest(hpd, requestBody, batchRequestId, searchRequestsDSML.toString());
+    }
+
+    private String toDSMLSearchRequest(HPDInstanceModel hpd, HPDClientConfig config, String searchRequestId, long deadline) {
         String baseDNOffset = new String();
         String dsmlScope = new String();
         switch (getSearchScope()) {
@@ -899,19 +1165,15 @@ public class HPDSearchRequest implements Serializable {
             default:
                 throw new RuntimeException("Unexpected SearchRequest searchScope: " + getSearchScope());
         }
+        return String.format(searchRequestBody, baseDNOffset, hpd.getBaseDN(), dsmlScope, Math.max(0, resultSizeLimit), getDSMLTimeLimit(hpd, config, deadline), searchRequestId, toDSMLSearchString(hpd), toDSMLAttributes(config));
+    }
+
+    private static String toSOAPRequest(HPDInstanceModel hpd, String requestBody, String batchRequestId, String searchRequestsDSML) {
         //Building the SoapRequest
-        //Get the Current template we're going to use
-        String requestBody = config.getSoapRequestTemplate();
         //We might need to store this later, we'll see...
         String soapActionRequestUUID = UUID.randomUUID().toString();
-        //Generate an random requestId to use for the batchRequest and the searchRequest.  Keeping these the same for now.
-        String randomRequestId = HPDUtil.generateRequestId();
-        //Generate batchRequestID
-        String batchRequestId = randomRequestId;
-        //Generate searchRequestID
-        String searchRequetID = randomRequestId;
         //Build the batchrequest, merging in the required dynamic aspects via String.format()
-        String batchRequest = String.format(requestBody, soapActionRequestUUID, hpd.getServiceURL(), batchRequestId, String.format(searchRequestBody, baseDNOffset, hpd.getBaseDN(), dsmlScope, searchRequetID, toDSMLSearchString(hpd)));
+        String batchRequest = String.format(requestBody, soapActionRequestUUID, hpd.getServiceURL(), batchRequestId, searchRequestsDSML);
         //If we need to tweak the request for an edge case, apply the XSLT to the rqeuest.
         if (HPDUtil.isNotBlank(hpd.getCustomHPDRequestXSLT())) {
             //Do the XSLT here on the request to conform to whatever honked request the destination needs..
@@ -19,7 +19,9 @@ import com.mirth.mail.hpd.models.HPDEntityModel;
 import com.mirth.mail.hpd.models.HPDOrgToProvRelationshipModel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class HPDSearchResult extends HPDResult {
     private static final long serialVersionUID = -223470930028307572L;
@@ -32,6 +34,12 @@ public class HPDSearchResult extends HPDResult {
 
     //The detailed level result map indexed by the HPD Id with HPDResult results from each Federated HPD searched 
     private HashMap<String, HPDResult> directorySearchResults;
+
+    //For a single directory, how each phase of the search went.  Phases that weren't needed aren't listed.
+    private LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status> phaseStatuses;
+
+    //True if this came from the result cache after its TTL, while a fresh copy is fetched.  For a federated result, if any directory's did.
+    private boolean servedStale;
     
     public HPDSearchResult() {
     }
@@ -44,14 +52,64 @@ public class HPDSearchResult extends HPDResult {
         super(resultCode, resultMsg, resultDSML);
     }
     
+    //A copy that shares no models or maps with this one, so it can be handed out while the original is cached or shared
+    public HPDSearchResult(HPDSearchResult result) {
+        super(result);
+        if (result.entities != null) {
+            this.entities = new ArrayList<HPDEntityModel>(result.entities.size());
+            for (HPDEntityModel entity : result.entities) {
+                this.entities.add(new HPDEntityModel(entity));
+            }
+        }
+        if (result.credentials != null) {
+            this.credentials = new ArrayList<HPDCredentialModel>(result.credentials.size());
+            for (HPDCredentialModel credential : result.credentials) {
+                this.credentials.add(new HPDCredentialModel(credential));
+            }
+        }
+        if (result.relationships != null) {
+            this.relationships = new ArrayList<HPDOrgToProvRelationshipModel>(result.relationships.size());
+            for (HPDOrgToProvRelationshipModel relationship : result.relationships) {
+                this.relationships.add(new HPDOrgToProvRelationshipModel(relationship));
+            }
+        }
+        if (result.services != null) {
+            this.services = new ArrayList<HPDElectronicServiceModel>(result.services.size());
+            for (HPDElectronicServiceModel service : result.services) {
+                this.services.add(new HPDElectronicServiceModel(service));
+            }
+        }
+        if (result.directorySearchResults != null) {
+            this.directorySearchResults = new HashMap<String, HPDResult>(result.directorySearchResults.size());
+            for (Map.Entry<String, HPDResult> directoryResult : result.directorySearchResults.entrySet()) {
+                HPDResult value = directoryResult.getValue();
+                if (value instanceof HPDSearchResult) {
+                    value = new HPDSearchResult((HPDSearchResult) value);
+                } else if (value != null) {
+                    value = new HPDResult(value);
+                }
+                this.directorySearchResults.put(directoryResult.getKey(), value);
+            }
+        }
+        if (result.phaseStatuses != null) {
+            this.phaseStatuses = new LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status>(result.phaseStatuses);
+        }
+        this.servedStale = result.servedStale;
+    }
+
     public HPDSearchResult(int resultCode, ProcessedHPDResponseDoc responseDocEntities) {
          setResultCode(resultCode);
-         setResponseDSML(HPDUtil.toXMLString(responseDocEntities.getOrignalResponseDoc(), false, true));
+         if (responseDocEntities.getOrignalResponseDoc() != null) {
+             setResponseDSML(HPDUtil.toXMLString(responseDocEntities.getOrignalResponseDoc(), false, true));
+         } else {
+             setResponseDSML(responseDocEntities.getOriginalResponseDSML());
+         }
          setResultMsg("Search returned " + responseDocEntities.getEntities().size() + " entities and " + responseDocEntities.getCredentials().size() + " credentials and " + responseDocEntities.getRelationships().size() + " relationships and " + responseDocEntities.getServices().size());
          this.entities = responseDocEntities.getEntities();
          this.credentials = responseDocEntities.getCredentials();
          this.relationships = responseDocEntities.getRelationships();
          this.services = responseDocEntities.getServices();
+         setTruncated(responseDocEntities.isTruncated());
     }
 
     public List<HPDEntityModel> getEntities() {
@@ -129,11 +187,80 @@ public class HPDSearchResult extends HPDResult {
         getDirectorySearchResults().put(directoryId, directoryResult);
     }
     
+    public Map<HPDSearchPhase, HPDSearchPhase.Status> getPhaseStatuses() {
+        if (phaseStatuses == null) {
+            phaseStatuses = new LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status>();
+        }
+        return phaseStatuses;
+    }
+
+    public void setPhaseStatuses(Map<HPDSearchPhase, HPDSearchPhase.Status> phaseStatuses) {
+        this.phaseStatuses = new LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status>(phaseStatuses);
+    }
+
+    public HPDSearchPhase.Status getPhaseStatus(HPDSearchPhase phase) {
+        return getPhaseStatuses().get(phase);
+    }
+
+    //Phases that had to be left out, so the entities are missing what those phases would have filled in
+    public List<HPDSearchPhase> getSkippedPhases() {
+        List<HPDSearchPhase> skippedPhases = new ArrayList<HPDSearchPhase>();
+        for (Map.Entry<HPDSearchPhase, HPDSearchPhase.Status> phaseStatus : getPhaseStatuses().entrySet()) {
+            if (phaseStatus.getValue() == HPDSearchPhase.Status.SKIPPED) {
+                skippedPhases.add(phaseStatus.getKey());
+            }
+        }
+        return skippedPhases;
+    }
+    
+    //Phases that didn't finish and how each one ended
+    public Map<HPDSearchPhase, HPDSearchPhase.Status> getIncompletePhases() {
+        Map<HPDSearchPhase, HPDSearchPhase.Status> incompletePhases = new LinkedHashMap<HPDSearchPhase, HPDSearchPhase.Status>();
+        for (Map.Entry<HPDSearchPhase, HPDSearchPhase.Status> phaseStatus : getPhaseStatuses().entrySet()) {
+            if (phaseStatus.getValue() != HPDSearchPhase.Status.DONE) {
+                incompletePhases.put(phaseStatus.getKey(), phaseStatus.getValue());
+            }
+        }
+        return incompletePhases;
+    }
+
+    /**
+     * The search succeeded but some of the enrichment behind it didn't, so entities may be missing their relationships,
+     * credentials, orgs or services.  For a federated result, true if that's the case for any directory.
+     */
+    public boolean isDegraded() {
+        if (!getIncompletePhases().isEmpty()) {
+            return true;
+        }
+        if (directorySearchResults != null) {
+            for (HPDResult directoryResult : directorySearchResults.values()) {
+                if (directoryResult instanceof HPDSearchResult && ((HPDSearchResult) directoryResult).isDegraded()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    public boolean isServedStale() {
+        return servedStale;
+    }
+
+    public void setServedStale(boolean servedStale) {
+        this.servedStale = servedStale;
+    }
+
     public void updateHPDResult(String directoryId, HPDSearchResult result) {
         if (result.getResultCode()<0 || result.getResultMsg()==null) {
             setResultCode(result.getResultCode());
             setResultMsg(result.getResultMsg());
         }
+        if (result.isServedStale()) {
+            setServedStale(true);
+        }
+        if (result.isTruncated()) {
+            setTruncated(true);
+        }
         addDirectorySearchResult(directoryId, result);
     }
     
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.exceptions.HPDDeadlineExceededException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets identical calls that overlap share one trip to the HPD.  The first caller for a key makes the call on its own
+ * thread, and anyone asking for the same key while it's running waits for that answer instead of making another.
+ * Everyone sharing an answer gets their own copy so they can't trip over each other, and waiters never wait past
+ * their own deadline.  A caller only waits on a call that's allowed to run as long as it is, otherwise it makes its own.
+ */
+abstract class HPDSingleFlight<V> {
+
+    //How much sooner than ours a call's deadline can be and still be worth waiting on.  Without some slack, callers
+    //that arrive a moment apart with the same timeout would never share.
+    static final long DEADLINE_SLACK_MS = 100;
+
+    private class Flight extends FutureTask<V> {
+        private final long deadline;      //When the caller making the call gives up on it
+        private int waiters;
+        private boolean closed;
+
+        Flight(Callable<V> call, long deadline) {
+            super(call);
+            this.deadline = deadline;
+        }
+
+        //False once the caller that made the call has taken its answer, too late to share it
+        synchronized boolean join() {
+            if (closed) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        //Returns true if anyone joined, in which case the answer is shared and nobody may change it
+        synchronized boolean close() {
+            closed = true;
+            return waiters > 0;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+    //A copy of a shared answer for one of the callers sharing it
+    abstract V copy(V value);
+
+    V execute(String key, Callable<V> call, long deadline) throws Exception {
+        while (true) {
+            Flight flight = new Flight(call, deadline);
+            Flight running = inFlight.putIfAbsent(key, flight);
+            if (running == null) {
+                try {
+                    flight.run();
+                } finally {
+                    inFlight.remove(key, flight);
+                }
+                //If anyone is waiting on this answer they'll copy it, so we have to work on a copy too
+                boolean shared = flight.close();
+                V value = unwrap(flight);
+                return shared && value != null ? copy(value) : value;
+            }
+            if (running.deadline < deadline - DEADLINE_SLACK_MS) {
+                //It would give up well before we have to, so make our own call.  It isn't shared, the running one already is.
+                return call.call();
+            }
+            if (running.join()) {
+                return await(running, deadline);
+            }
+            //It finished while we were looking, so make a call of our own
+        }
+    }
+
+    private V await(Flight running, long deadline) throws Exception {
+        long remainingMS = deadline - System.currentTimeMillis();
+        if (remainingMS <= 0) {
+            throw new HPDDeadlineExceededException("Deadline passed while waiting for an identical call already in flight.");
+        }
+        try {
+            running.get(remainingMS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            throw new HPDDeadlineExceededException(String.format("Deadline passed after waiting %sms for an identical call already in flight.", remainingMS));
+        } catch (ExecutionException ee) {
+            //Rethrown below
+        }
+        V value = unwrap(running);
+        return value != null ? copy(value) : null;
+    }
+
+    private V unwrap(Flight flight) throws Exception {
+        try {
+            return flight.get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof Exception) {
+                throw (Exception) ee.getCause();
+            }
+            throw ee;
+        }
+    }
+}
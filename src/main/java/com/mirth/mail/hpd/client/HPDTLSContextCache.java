@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+
+/**
+ * Caches the TLS material (keystore, truststore and the <code>SSLContext</code> built from them) used for
+ * <code>PROVIDER_DIR_AUTH_TYPE_TLS</code> directories.  The material is keyed by the keystore/truststore paths
+ * and their modification times: it is parsed once and rebuilt only when one of the files changes.
+ * Sharing a single <code>SSLContext</code> also lets new connections resume earlier TLS sessions.
+ */
+public class HPDTLSContextCache {
+
+    final static Logger log = Logger.getLogger(HPDTLSContextCache.class.getName());
+
+    private static final String KEYSTORE_PASSWORD = "changeit";
+    private static final String TRUSTSTORE_PASSWORD = "changeit";
+    private static final int TLS_SESSION_CACHE_SIZE = 100;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 3600;
+
+    private final HPDClientConfig config;
+    private volatile TLSMaterial material;
+
+    public HPDTLSContextCache(HPDClientConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Returns the socket factory for the current keystore and truststore, reloading them if either file changed.
+     */
+    public SSLSocketFactory getSocketFactory() throws KeyStoreException, NoSuchAlgorithmException,
+            CertificateException, UnrecoverableKeyException, KeyManagementException, IOException {
+        String keyStorePath = config.getHPDKeyStorePath();
+        String trustStorePath = config.getHPDTrustStorePath();
+        long keyStoreModified = new File(keyStorePath).lastModified();
+        long trustStoreModified = new File(trustStorePath).lastModified();
+
+        TLSMaterial current = material;
+        if (current == null || !current.isFor(keyStorePath, keyStoreModified, trustStorePath, trustStoreModified)) {
+            synchronized (this) {
+                current = material;
+                if (current == null || !current.isFor(keyStorePath, keyStoreModified, trustStorePath, trustStoreModified)) {
+                    current = loadMaterial(keyStorePath, keyStoreModified, trustStorePath, trustStoreModified);
+                    material = current;
+                }
+            }
+        }
+        return current.socketFactory;
+    }
+
+    private TLSMaterial loadMaterial(String keyStorePath, long keyStoreModified, String trustStorePath, long trustStoreModified)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException,
+            KeyManagementException, IOException {
+        log.log(Level.INFO, "Loading HPD TLS material from {0} and {1}", new Object[]{keyStorePath, trustStorePath});
+
+        KeyStore keystore = loadKeyStore("pkcs12", keyStorePath, KEYSTORE_PASSWORD);
+        KeyStore truststore = loadKeyStore("jks", trustStorePath, TRUSTSTORE_PASSWORD);
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keystore, KEYSTORE_PASSWORD.toCharArray());
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(truststore);
+
+        SSLContext sslContext = SSLContext.getInstance(SSLSocketFactory.TLS);
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        //Keep client sessions around so reconnects to the same HPD can do an abbreviated handshake
+        sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+
+        SSLSocketFactory socketFactory = new SSLSocketFactory(sslContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        return new TLSMaterial(keyStorePath, keyStoreModified, trustStorePath, trustStoreModified, socketFactory);
+    }
+
+    private KeyStore loadKeyStore(String type, String path, String password) throws KeyStoreException,
+            NoSuchAlgorithmException, CertificateException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        InputStream input = new FileInputStream(path);
+        try {
+            keyStore.load(input, password.toCharArray());
+        } finally {
+            input.close();
+        }
+        return keyStore;
+    }
+
+    private static class TLSMaterial {
+
+        private final String keyStorePath;
+        private final long keyStoreModified;
+        private final String trustStorePath;
+        private final long trustStoreModified;
+        private final SSLSocketFactory socketFactory;
+
+        TLSMaterial(String keyStorePath, long keyStoreModified, String trustStorePath, long trustStoreModified, SSLSocketFactory socketFactory) {
+            this.keyStorePath = keyStorePath;
+            this.keyStoreModified = keyStoreModified;
+            this.trustStorePath = trustStorePath;
+            this.trustStoreModified = trustStoreModified;
+            this.socketFactory = socketFactory;
+        }
+
+        boolean isFor(String keyStorePath, long keyStoreModified, String trustStorePath, long trustStoreModified) {
+            return this.keyStorePath.equals(keyStorePath) && this.keyStoreModified == keyStoreModified
+                    && this.trustStorePath.equals(trustStorePath) && this.trustStoreModified == trustStoreModified;
+        }
+    }
+}
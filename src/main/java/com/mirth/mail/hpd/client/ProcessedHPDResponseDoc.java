@@ -19,16 +19,25 @@ import com.mirth.mail.hpd.models.HPDElectronicServiceModel;
 import com.mirth.mail.hpd.models.HPDEntityModel;
 import com.mirth.mail.hpd.models.HPDOrgToProvRelationshipModel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import org.w3c.dom.Document;
 
 public class ProcessedHPDResponseDoc {    
     
     private Document orignalResponseDoc;
+    private String originalResponseDSML;     //Only retained when HPDClientConfig.isRetainResponseDSML() is on
     private List<HPDEntityModel> entities;
     private List<HPDCredentialModel> credentials;
     private List<HPDOrgToProvRelationshipModel> relationships;
     private List<HPDElectronicServiceModel> services;
+    private boolean truncated;    //The HPD had more matches than it sent back
+    
+    //Indexes used while weaving the enrichment phases into the entities.  All keys are lower-cased.
+    private final HashMap<String, HPDEntityModel> entitiesByUID = new HashMap<String, HPDEntityModel>();
+    private final HashMap<String, HPDOrgToProvRelationshipModel> entityRelationshipsByDN = new HashMap<String, HPDOrgToProvRelationshipModel>();
+    private final HashMap<String, List<HPDOrgToProvRelationshipModel>> entityRelationshipsByOrgDN = new HashMap<String, List<HPDOrgToProvRelationshipModel>>();
+    private int indexedEntityCount;
  
     public ProcessedHPDResponseDoc() {
     }
@@ -46,6 +55,14 @@ public class ProcessedHPDResponseDoc {
         this.orignalResponseDoc = orignalResponseDoc;
     }
     
+    public String getOriginalResponseDSML() {
+        return originalResponseDSML;
+    }
+
+    public void setOriginalResponseDSML(String originalResponseDSML) {
+        this.originalResponseDSML = originalResponseDSML;
+    }
+    
     public List<HPDEntityModel> getEntities() {
         if (entities == null) {
             entities = new ArrayList<HPDEntityModel>();
@@ -55,10 +72,15 @@ public class ProcessedHPDResponseDoc {
 
     public void setEntities(List<HPDEntityModel> entities) {
         this.entities = entities;
+        this.indexedEntityCount = -1;
     }
 
     public void addEntity(HPDEntityModel entity) {
         getEntities().add(entity);
+        if (indexedEntityCount == getEntities().size() - 1) {
+            indexEntity(entity);
+            indexedEntityCount++;
+        }
     }
     
     public List<HPDCredentialModel> getCredentials() {
@@ -97,6 +119,7 @@ public class ProcessedHPDResponseDoc {
     
     public void addRelationshipToEntity(String entityUID, HPDOrgToProvRelationshipModel relationship) {
         findEntityByUID(entityUID).addRelationship(relationship);
+        indexEntityRelationship(relationship);
     }  
     
     public List<HPDElectronicServiceModel> getServices() {
@@ -127,43 +150,110 @@ public class ProcessedHPDResponseDoc {
     }
     
     public void addOrgModelToAffiliatedRelationships(HPDEntityModel orgModel) {
-        for (HPDEntityModel entity : getEntities()) {
-            for (HPDOrgToProvRelationshipModel relationship : entity.getRelationships()) {
-                if (relationship.getHasAnOrgDN().toLowerCase().equals(orgModel.getDN().toLowerCase())) {
-                    relationship.setRelatedOrg(orgModel);
-                    for (HPDContactModel contact : relationship.getContacts()) {
-                        if (contact.getAffiliatedOrgLDAPDn().equals(orgModel.getDN())) {
-                            contact.setAffiliatedOrgId(orgModel.getEntityUID());
-                            contact.setAffiliatedOrgName(orgModel.getName());
-                        }
-                    }
+        ensureEntityIndexes();
+        List<HPDOrgToProvRelationshipModel> affiliatedRelationships = entityRelationshipsByOrgDN.get(orgModel.getDN().toLowerCase());
+        if (affiliatedRelationships == null) {
+            return;
+        }
+        for (HPDOrgToProvRelationshipModel relationship : affiliatedRelationships) {
+            relationship.setRelatedOrg(orgModel);
+            for (HPDContactModel contact : relationship.getContacts()) {
+                if (contact.getAffiliatedOrgLDAPDn().equals(orgModel.getDN())) {
+                    contact.setAffiliatedOrgId(orgModel.getEntityUID());
+                    contact.setAffiliatedOrgName(orgModel.getName());
                 }
             }
         }
     }
     
     private HPDEntityModel findEntityByUID(String entityUID) {
-        for (HPDEntityModel entity : getEntities()) {
-            if (entity.getEntityUID().equalsIgnoreCase(entityUID)) {
-                return entity;
-            }
+        ensureEntityIndexes();
+        HPDEntityModel entity = entityUID == null ? null : entitiesByUID.get(entityUID.toLowerCase());
+        if (entity == null) {
+            throw new RuntimeException("findEntityByUID: Entity not found by EntityUID '" + entityUID + "'");
         }
-        throw new RuntimeException("findEntityByUID: Entity not found by EntityUID '" + entityUID + "'");
+        return entity;
     }
     
     private HPDOrgToProvRelationshipModel findRelationshipByDN(String relationshipDN) {
-        for (HPDEntityModel entity : getEntities()) {
-            for (HPDOrgToProvRelationshipModel relationship : entity.getRelationships()) {
-                if (relationship.getDN().equalsIgnoreCase(relationshipDN)) {
-                    return relationship;
-                }
-            }
+        ensureEntityIndexes();
+        HPDOrgToProvRelationshipModel relationship = relationshipDN == null ? null : entityRelationshipsByDN.get(relationshipDN.toLowerCase());
+        if (relationship == null) {
+            throw new RuntimeException("findRelationshipByDN: Relationship not found by relationshipDN '" + relationshipDN + "'");
         }
-        throw new RuntimeException("findRelationshipByDN: Relationship not found by relationshipDN '" + relationshipDN + "'");
+        return relationship;
     }   
     
+    //The entity list is public, so if it's been added to or replaced other than through addEntity() we rebuild
+    //the indexes from scratch.  Relationships only need to be attached through addRelationshipToEntity().
+    private void ensureEntityIndexes() {
+        if (indexedEntityCount != getEntities().size()) {
+            entitiesByUID.clear();
+            entityRelationshipsByDN.clear();
+            entityRelationshipsByOrgDN.clear();
+            for (HPDEntityModel entity : getEntities()) {
+                indexEntity(entity);
+            }
+            indexedEntityCount = getEntities().size();
+        }
+    }
+    
+    private void indexEntity(HPDEntityModel entity) {
+        //First one wins, as it did when we scanned the list
+        if (entity.getEntityUID() != null && !entitiesByUID.containsKey(entity.getEntityUID().toLowerCase())) {
+            entitiesByUID.put(entity.getEntityUID().toLowerCase(), entity);
+        }
+        for (HPDOrgToProvRelationshipModel relationship : entity.getRelationships()) {
+            indexEntityRelationship(relationship);
+        }
+    }
+    
+    private void indexEntityRelationship(HPDOrgToProvRelationshipModel relationship) {
+        if (relationship.getDN() != null && !entityRelationshipsByDN.containsKey(relationship.getDN().toLowerCase())) {
+            entityRelationshipsByDN.put(relationship.getDN().toLowerCase(), relationship);
+        }
+        if (relationship.getHasAnOrgDN() != null) {
+            String orgDN = relationship.getHasAnOrgDN().toLowerCase();
+            List<HPDOrgToProvRelationshipModel> orgRelationships = entityRelationshipsByOrgDN.get(orgDN);
+            if (orgRelationships == null) {
+                orgRelationships = new ArrayList<HPDOrgToProvRelationshipModel>();
+                entityRelationshipsByOrgDN.put(orgDN, orgRelationships);
+            }
+            orgRelationships.add(relationship);
+        }
+    }
+    
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
     public int getTotalEntiesFound() {
         return getCredentials().size() + getEntities().size() + getRelationships().size() + getServices().size();
     }
 
+    //A copy that shares no models with this one, for handing the same response to more than one search.  It's taken
+    //before the phases are woven together, so the models don't refer to each other yet.  The DOM is shared, it's only ever read.
+    ProcessedHPDResponseDoc copy() {
+        ProcessedHPDResponseDoc copy = new ProcessedHPDResponseDoc(orignalResponseDoc);
+        copy.setOriginalResponseDSML(originalResponseDSML);
+        copy.setTruncated(truncated);
+        for (HPDEntityModel entity : getEntities()) {
+            copy.addEntity(new HPDEntityModel(entity));
+        }
+        for (HPDCredentialModel credential : getCredentials()) {
+            copy.addCredential(new HPDCredentialModel(credential));
+        }
+        for (HPDOrgToProvRelationshipModel relationship : getRelationships()) {
+            copy.addRelationship(new HPDOrgToProvRelationshipModel(relationship));
+        }
+        for (HPDElectronicServiceModel service : getServices()) {
+            copy.addServices(new HPDElectronicServiceModel(service));
+        }
+        return copy;
+    }
+
 }
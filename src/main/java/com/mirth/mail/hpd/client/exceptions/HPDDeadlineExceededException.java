@@ -0,0 +1,27 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client.exceptions;
+
+//The caller's search deadline ran out, rather than the HPD being slow.  Says nothing about the health of the HPD.
+public class HPDDeadlineExceededException extends Exception {
+
+        private static final long serialVersionUID = 2871950286637145829L;
+
+        public HPDDeadlineExceededException() {
+        }
+
+        public HPDDeadlineExceededException(String msg) {
+            super(msg);
+        }
+    }
@@ -45,6 +45,22 @@ public class HPDAddressModel implements Serializable {
     public HPDAddressModel() {
     }
 
+    public HPDAddressModel(HPDAddressModel address) {
+        this.addressTypeId = address.addressTypeId;
+        this.addressTypeLabel = address.addressTypeLabel;
+        this.addressLine1 = address.addressLine1;
+        this.addressLine2 = address.addressLine2;
+        this.locality = address.locality;
+        this.state = address.state;
+        this.postal = address.postal;
+        this.countryCode = address.countryCode;
+        this.statusId = address.statusId;
+        this.affiliatedOrgId = address.affiliatedOrgId;
+        this.affiliatedOrgLDAPDn = address.affiliatedOrgLDAPDn;
+        this.streetName = address.streetName;
+        this.streetNumber = address.streetNumber;
+    }
+
     public HPDAddressModel(String addressTypeId, String addressTypeLabel, String hpdLDAPAddressAttr) {
         this.addressTypeId = addressTypeId;
         this.addressTypeLabel = addressTypeLabel;
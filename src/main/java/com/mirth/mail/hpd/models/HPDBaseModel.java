@@ -18,63 +18,123 @@ import com.thoughtworks.xstream.XStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import javax.xml.bind.annotation.XmlTransient;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 public class HPDBaseModel implements IHPDModel {
     private HashMap<String, List<String>> entityAttrs = new HashMap<String, List<String>>();
+    //entityAttrs keyed by lower-cased attribute name so lookups don't have to lower-case and compare every attribute
+    //name.  Rebuilt on demand.
+    private HashMap<String, List<String>> normalizedAttrs;
+    //The keys and values of entityAttrs, in iteration order, that normalizedAttrs was built from
+    private Object[] normalizedAttrsSource;
     private String dn;
     private String directoryId;
     private String directoryName;    
+
+    public HPDBaseModel() {
+    }
+
+    //A copy with its own attribute lists, so changing one model's attributes doesn't change the other's
+    public HPDBaseModel(HPDBaseModel model) {
+        for (Map.Entry<String, List<String>> attr : model.entityAttrs.entrySet()) {
+            entityAttrs.put(attr.getKey(), attr.getValue() == null ? null : new ArrayList<String>(attr.getValue()));
+        }
+        this.dn = model.dn;
+        this.directoryId = model.directoryId;
+        this.directoryName = model.directoryName;
+    }
     
     @XmlTransient    
     public void setEntityAttrsFromEntity(NodeList entity) {
-        //Ok, we need to iterate through the NodeList to get all the Attributes of the Entity create a NVP list on them
-        for (int i = 0; i < entity.getLength(); i++) {
-            Node attrNode = entity.item(i);
-            //Sometimes we get a node with no Attributes.  Skip those.
-            if (attrNode.getAttributes()!=null && attrNode.getAttributes().getNamedItem("name")!=null) {            
-                String id = attrNode.getAttributes().getNamedItem("name").getNodeValue();
-                NodeList values = attrNode.getChildNodes();
-                List<String> valuesList = new ArrayList<String>();
-                for (int j = 0; j < values.getLength(); j++) {
-                    //Skip empty Values
-                    if (values.item(j)!=null && HPDUtil.isNotBlank(values.item(j).getTextContent())) {
-                        valuesList.add(values.item(j).getTextContent());
-                    }
-                }
-                //If we got 1 or more values, we can add it to the list.
-                //NOTE: We could decide later to allow the Attr but with no value indicating that the remote system
-                //Stored the Attribute, but no Values related to the Attribute.
-                if (valuesList.size()>0) {
-                    entityAttrs.put(id, valuesList);
+        setEntityAttrsFromEntity(HPDEntryRecord.fromNodeList(getDN(), entity));
+    }
+    
+    @XmlTransient
+    public void setEntityAttrsFromEntity(HPDEntryRecord entity) {
+        for (Map.Entry<String, List<String>> attr : entity.getAttrs().entrySet()) {
+            List<String> valuesList = new ArrayList<String>();
+            for (String value : attr.getValue()) {
+                //Skip empty Values
+                if (HPDUtil.isNotBlank(value)) {
+                    valuesList.add(value);
                 }
             }
-        }        
+            //If we got 1 or more values, we can add it to the list.
+            //NOTE: We could decide later to allow the Attr but with no value indicating that the remote system
+            //Stored the Attribute, but no Values related to the Attribute.
+            if (valuesList.size()>0) {
+                entityAttrs.put(attr.getKey(), valuesList);
+            }
+        }
+        normalizedAttrs = null;
     }
     
     @XmlTransient
     public String getSimpleAttrValue(String attrId) {
-        for (Map.Entry<String,List<String>> attrsEntry : getEntityAttrs().entrySet()) {
-            if (attrsEntry.getKey().equalsIgnoreCase(attrId)) {
-                return attrsEntry.getValue().get(0);
-            }
+        List<String> values = getNormalizedAttrs().get(normalizeAttrId(attrId));
+        if (values != null) {
+            return values.get(0);
         }
         return "";
     }
 
     @XmlTransient
     public List<String> getMultiValueAttr(String attrId) {
-        for (Map.Entry<String,List<String>> attrsEntry : getEntityAttrs().entrySet()) {
-            if (attrsEntry.getKey().equalsIgnoreCase(attrId)) {
-                return attrsEntry.getValue();
-            }        
+        List<String> values = getNormalizedAttrs().get(normalizeAttrId(attrId));
+        if (values != null) {
+            return values;
         }
         return new ArrayList<String>();
     }
 
+    private static String normalizeAttrId(String attrId) {
+        return attrId.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static void indexAttr(HashMap<String, List<String>> index, String attrId, List<String> values) {
+        //Interned so the handful of attribute names we see share one key instance across all the entries we parse.
+        //First one wins when a directory sends the same attribute under two spellings.
+        String normalizedId = normalizeAttrId(attrId).intern();
+        if (!index.containsKey(normalizedId)) {
+            index.put(normalizedId, values);
+        }
+    }
+
+    private HashMap<String, List<String>> getNormalizedAttrs() {
+        //entityAttrs is handed out by getEntityAttrs(), so it can be changed behind our back at any time.  Checking
+        //it against what the index was built from is only reference compares, which is still far cheaper than the
+        //case-insensitive scan the index saves.
+        if (normalizedAttrs == null || !isNormalizedAttrsSource()) {
+            HashMap<String, List<String>> index = new HashMap<String, List<String>>();
+            Object[] source = new Object[entityAttrs.size() * 2];
+            int i = 0;
+            for (Map.Entry<String, List<String>> attrsEntry : entityAttrs.entrySet()) {
+                indexAttr(index, attrsEntry.getKey(), attrsEntry.getValue());
+                source[i++] = attrsEntry.getKey();
+                source[i++] = attrsEntry.getValue();
+            }
+            normalizedAttrs = index;
+            normalizedAttrsSource = source;
+        }
+        return normalizedAttrs;
+    }
+
+    private boolean isNormalizedAttrsSource() {
+        if (normalizedAttrsSource.length != entityAttrs.size() * 2) {
+            return false;
+        }
+        int i = 0;
+        for (Map.Entry<String, List<String>> attrsEntry : entityAttrs.entrySet()) {
+            if (attrsEntry.getKey() != normalizedAttrsSource[i++] || attrsEntry.getValue() != normalizedAttrsSource[i++]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @XmlTransient
     public boolean hasObjectClass(String objectClassId) {
         List<String> objectClasses = getMultiValueAttr("objectClass");
@@ -101,6 +161,7 @@ public class HPDBaseModel implements IHPDModel {
     @Override
     public void setEntityAttrs(HashMap<String, List<String>> entityAttrs) {
         this.entityAttrs = entityAttrs;
+        this.normalizedAttrs = null;
     }    
     
     @Override
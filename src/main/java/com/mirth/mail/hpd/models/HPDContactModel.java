@@ -33,6 +33,10 @@ public class HPDContactModel implements Serializable {
         
     }
     
+    public HPDContactModel(HPDContactModel contact) {
+        this(contact.contactTypeId, contact.contactAddress, contact.affiliatedOrgId, contact.affiliatedOrgName, contact.affiliatedOrgLDAPDn);
+    }
+    
     public HPDContactModel(String contactTypeId, String contactAddress) {
         this.contactTypeId = contactTypeId;
         this.contactAddress = contactAddress;
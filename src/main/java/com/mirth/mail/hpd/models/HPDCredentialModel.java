@@ -31,12 +31,31 @@ public class HPDCredentialModel extends HPDBaseModel implements IHPDModel {
     
     public HPDCredentialModel() {
     }
+
+    public HPDCredentialModel(HPDCredentialModel credential) {
+        super(credential);
+        this.id = credential.id;
+        this.name = credential.name;
+        this.number = credential.number;
+        this.type = credential.type;
+        this.status = credential.status;
+        this.description = credential.description;
+        this.issueDate = credential.issueDate == null ? null : new Date(credential.issueDate.getTime());
+        this.rewewalDate = credential.rewewalDate == null ? null : new Date(credential.rewewalDate.getTime());
+    }
     
+    //The attributes read below.  Searches for credentials only ask the HPD for these unless all attributes are requested.
+    public static final String[] DSML_ATTRIBUTES = {"credentialName", "credentialNumber", "credentialType", "credentialStatus", "description", "hpdCredentialId"};
+
     public HPDCredentialModel(HPDInstanceModel directoryInstance, String dn, NodeList entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
+        this(directoryInstance, HPDEntryRecord.fromNodeList(dn, entity));
+    }
+
+    public HPDCredentialModel(HPDInstanceModel directoryInstance, HPDEntryRecord entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
         //Set the directory information for the HPD this Entity came from
         setDirectoryId(directoryInstance.getId());
         setDirectoryName(directoryInstance.getName());
-        setDN(dn);
+        setDN(entity.getDN());
         setEntityAttrsFromEntity(entity);
         
         name = getSimpleAttrValue("credentialName");
@@ -29,11 +29,28 @@ public class HPDElectronicServiceModel extends HPDBaseModel {
     public HPDElectronicServiceModel() {
     }    
 
+    public HPDElectronicServiceModel(HPDElectronicServiceModel service) {
+        super(service);
+        this.serviceId = service.serviceId;
+        this.serviceAddress = service.serviceAddress;
+        this.contentProfile = service.contentProfile;
+        this.integrationProfile = service.integrationProfile;
+        this.securityProfile = service.securityProfile;
+        this.certificate = service.certificate == null ? null : service.certificate.clone();
+    }
+
+    //The attributes read below.  Searches for services only ask the HPD for these unless all attributes are requested.
+    public static final String[] DSML_ATTRIBUTES = {"hpdserviceid", "hpdServiceAddress", "hpdIntegrationProfile", "hpdSecurityProfile"};
+
     public HPDElectronicServiceModel(HPDInstanceModel directoryInstance, String dn, NodeList entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
+        this(directoryInstance, HPDEntryRecord.fromNodeList(dn, entity));
+    }
+
+    public HPDElectronicServiceModel(HPDInstanceModel directoryInstance, HPDEntryRecord entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
         //Set the directory information for the HPD this Entity came from
         setDirectoryId(directoryInstance.getId());
         setDirectoryName(directoryInstance.getName());
-        setDN(dn);
+        setDN(entity.getDN());
         setEntityAttrsFromEntity(entity);
         
         this.serviceId = getSimpleAttrValue("hpdserviceid");
@@ -57,11 +57,76 @@ public class HPDEntityModel extends HPDBaseModel implements Serializable, Compar
     public HPDEntityModel() {
     }
 
+    //A copy that shares none of the models it refers to either, so it can be handed out while the original is cached
+    public HPDEntityModel(HPDEntityModel entity) {
+        super(entity);
+        this.entityTypeId = entity.entityTypeId;
+        this.uid = entity.uid;
+        this.authorityId = entity.authorityId;
+        this.entityUID = entity.entityUID;
+        this.displayName = entity.displayName;
+        this.orgName = entity.orgName;
+        this.givenName = entity.givenName;
+        this.middleName = entity.middleName;
+        this.title = entity.title;
+        this.surname = entity.surname;
+        this.status = entity.status;
+        this.profession = entity.profession;
+        if (entity.contacts != null) {
+            this.contacts = new ArrayList<HPDContactModel>(entity.contacts.size());
+            for (HPDContactModel contact : entity.contacts) {
+                this.contacts.add(new HPDContactModel(contact));
+            }
+        }
+        if (entity.addresses != null) {
+            this.addresses = new ArrayList<HPDAddressModel>(entity.addresses.size());
+            for (HPDAddressModel address : entity.addresses) {
+                this.addresses.add(new HPDAddressModel(address));
+            }
+        }
+        if (entity.relationships != null) {
+            this.relationships = new ArrayList<HPDOrgToProvRelationshipModel>(entity.relationships.size());
+            for (HPDOrgToProvRelationshipModel relationship : entity.relationships) {
+                this.relationships.add(new HPDOrgToProvRelationshipModel(relationship));
+            }
+        }
+        if (entity.credentials != null) {
+            this.credentials = new ArrayList<HPDCredentialModel>(entity.credentials.size());
+            for (HPDCredentialModel credential : entity.credentials) {
+                this.credentials.add(new HPDCredentialModel(credential));
+            }
+        }
+        if (entity.services != null) {
+            this.services = new ArrayList<HPDElectronicServiceModel>(entity.services.size());
+            for (HPDElectronicServiceModel service : entity.services) {
+                this.services.add(new HPDElectronicServiceModel(service));
+            }
+        }
+        if (entity.specialties != null) {
+            this.specialties = new ArrayList<HPDSpecialtyModel>(entity.specialties.size());
+            for (HPDSpecialtyModel specialty : entity.specialties) {
+                this.specialties.add(new HPDSpecialtyModel(specialty));
+            }
+        }
+        this.serviceDNs = entity.serviceDNs == null ? null : new ArrayList<String>(entity.serviceDNs);
+        this.credentialDNs = entity.credentialDNs == null ? null : new ArrayList<String>(entity.credentialDNs);
+    }
+
+    //The attributes read below.  Searches for entities only ask the HPD for these unless all attributes are requested.
+    public static final String[] DSML_ATTRIBUTES = {"uid", "hpdOrgId", "objectClass", "cn", "o", "hcProfession", "hpdProviderStatus",
+        "givenName", "sn", "initials", "title", "displayName", "telephoneNumber", "facsimileTelephoneNumber", "mail",
+        "hpdMedicalRecordsDeliveryEmailAddress", "hpdProviderBillingAddress", "hpdProviderMailingAddress", "hpdProviderPracticeAddress",
+        "hpdHasAService", "hpdCredential", "hcSpecialization"};
+
     public HPDEntityModel(HPDInstanceModel directoryInstance, String dn, NodeList entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
+        this(directoryInstance, HPDEntryRecord.fromNodeList(dn, entity));
+    }
+
+    public HPDEntityModel(HPDInstanceModel directoryInstance, HPDEntryRecord entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
         //Set the directory information for the HPD this Entity came from
         setDirectoryId(directoryInstance.getId());
         setDirectoryName(directoryInstance.getName());
-        setDN(dn);
+        setDN(entity.getDN());
         setEntityAttrsFromEntity(entity);
 
         //Now let's do the mapping starting with the UID which correlates to our EntityUID
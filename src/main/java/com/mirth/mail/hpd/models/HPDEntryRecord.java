@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A single searchResultEntry as returned by an HPD: its DN and the values of each attribute, in the order they were
+ * received.  This is what the models are built from, so they don't depend on how the response was parsed.
+ */
+public class HPDEntryRecord {
+
+    private final String dn;
+    private final Map<String, List<String>> attrs = new LinkedHashMap<String, List<String>>();
+
+    public HPDEntryRecord(String dn) {
+        this.dn = dn;
+    }
+
+    //Builds a record from the attr children of a DOM searchResultEntry
+    public static HPDEntryRecord fromNodeList(String dn, NodeList entity) {
+        HPDEntryRecord record = new HPDEntryRecord(dn);
+        //Ok, we need to iterate through the NodeList to get all the Attributes of the Entity create a NVP list on them
+        for (int i = 0; i < entity.getLength(); i++) {
+            Node attrNode = entity.item(i);
+            //Sometimes we get a node with no Attributes.  Skip those.
+            if (attrNode.getAttributes()!=null && attrNode.getAttributes().getNamedItem("name")!=null) {
+                String id = attrNode.getAttributes().getNamedItem("name").getNodeValue();
+                List<String> valuesList = record.addAttr(id);
+                NodeList values = attrNode.getChildNodes();
+                for (int j = 0; j < values.getLength(); j++) {
+                    if (values.item(j)!=null) {
+                        valuesList.add(values.item(j).getTextContent());
+                    }
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Adds an attribute with no values yet and returns its value list.  If the attribute was already present its
+     * values are replaced, matching how a repeated attr in a DSML entry was always treated.
+     */
+    public List<String> addAttr(String name) {
+        List<String> values = new ArrayList<String>();
+        attrs.put(name, values);
+        return values;
+    }
+
+    public void addValue(String name, String value) {
+        List<String> values = attrs.get(name);
+        if (values == null) {
+            values = addAttr(name);
+        }
+        values.add(value);
+    }
+
+    public String getDN() {
+        return dn;
+    }
+
+    public Map<String, List<String>> getAttrs() {
+        return Collections.unmodifiableMap(attrs);
+    }
+
+    public List<String> getValues(String name) {
+        List<String> values = attrs.get(name);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    @Override
+    public String toString() {
+        return dn + " " + attrs;
+    }
+}
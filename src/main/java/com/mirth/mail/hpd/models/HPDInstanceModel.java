@@ -31,6 +31,9 @@ public class HPDInstanceModel implements Serializable {
     private String password;                //The password to use for basic Auth
     private String customHPDRequestXSLT;    //Do we need to modify the DSML request with a custom XSLT before we send it out
     private Integer requestTimeoutMS;       //Timeout to wait for HPD requests in milliseconds
+    private Boolean batchSearchSupported;   //Can this HPD take several searchRequests in one batchRequest.  Off unless configured.
+    private String mirrorServiceURL;        //Optional: Another endpoint serving the same HPD.  Hedged requests go here rather than to the serviceURL.
+    private Integer resultCacheTTLMS;       //Optional: How long search results from this HPD are cached, when caching is on.  Defaults to the client's resultCacheTTLMS.
     
     public HPDInstanceModel() {     
         this.authType = Constants.PROVIDER_DIR_AUTH_TYPE_NONE;
@@ -128,6 +131,30 @@ public class HPDInstanceModel implements Serializable {
 
     public void setRequestTimeoutMS(Integer requestTimoutMS) {
         this.requestTimeoutMS = requestTimoutMS;
+    }
+
+    public boolean isBatchSearchSupported() {
+        return batchSearchSupported != null && batchSearchSupported;
+    }
+
+    public void setBatchSearchSupported(boolean batchSearchSupported) {
+        this.batchSearchSupported = batchSearchSupported;
     }    
+
+    public String getMirrorServiceURL() {
+        return mirrorServiceURL;
+    }
+
+    public void setMirrorServiceURL(String mirrorServiceURL) {
+        this.mirrorServiceURL = mirrorServiceURL;
+    }
+
+    public Integer getResultCacheTTLMS() {
+        return resultCacheTTLMS;
+    }
+
+    public void setResultCacheTTLMS(Integer resultCacheTTLMS) {
+        this.resultCacheTTLMS = resultCacheTTLMS;
+    }
     
 }
\ No newline at end of file
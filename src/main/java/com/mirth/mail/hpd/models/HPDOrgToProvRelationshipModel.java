@@ -33,12 +33,42 @@ public class HPDOrgToProvRelationshipModel extends HPDBaseModel implements IHPDM
     
     public HPDOrgToProvRelationshipModel() {
     }
+
+    //A copy that shares none of the models it refers to either
+    public HPDOrgToProvRelationshipModel(HPDOrgToProvRelationshipModel relationship) {
+        super(relationship);
+        this.id = relationship.id;
+        this.hasAnOrgDN = relationship.hasAnOrgDN;
+        this.relatedOrg = relationship.relatedOrg == null ? null : new HPDEntityModel(relationship.relatedOrg);
+        this.hasAProviderDN = relationship.hasAProviderDN;
+        this.hasAServiceDN = relationship.hasAServiceDN == null ? null : new ArrayList<String>(relationship.hasAServiceDN);
+        if (relationship.services != null) {
+            this.services = new ArrayList<HPDElectronicServiceModel>(relationship.services.size());
+            for (HPDElectronicServiceModel service : relationship.services) {
+                this.services.add(new HPDElectronicServiceModel(service));
+            }
+        }
+        if (relationship.contacts != null) {
+            this.contacts = new ArrayList<HPDContactModel>(relationship.contacts.size());
+            for (HPDContactModel contact : relationship.contacts) {
+                this.contacts.add(new HPDContactModel(contact));
+            }
+        }
+    }
     
+    //The attributes read below.  Searches for relationships only ask the HPD for these unless all attributes are requested.
+    public static final String[] DSML_ATTRIBUTES = {"hpdMemberId", "hpdHasAnOrg", "hpdHasAProvider", "hpdHasAService", "telephoneNumber", "mobile",
+        "facsimileTelephoneNumber", "mail", "Email"};
+
     public HPDOrgToProvRelationshipModel(HPDInstanceModel directoryInstance, String dn, NodeList entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
+        this(directoryInstance, HPDEntryRecord.fromNodeList(dn, entity));
+    }
+
+    public HPDOrgToProvRelationshipModel(HPDInstanceModel directoryInstance, HPDEntryRecord entity) throws UnexpectedLDAPObjectException, HPDObjectWithNoUIDException {
         //Set the directory information for the HPD this Entity came from
         setDirectoryId(directoryInstance.getId());
         setDirectoryName(directoryInstance.getName());
-        setDN(dn);
+        setDN(entity.getDN());
         setEntityAttrsFromEntity(entity);
         
         //Now for the Relationship specific attributes
@@ -27,6 +27,13 @@ public class HPDSpecialtyModel implements Serializable {
         
     }
     
+    public HPDSpecialtyModel(HPDSpecialtyModel specialty) {
+        this.authorityOID = specialty.authorityOID;
+        this.authorityName = specialty.authorityName;
+        this.specialtyCode = specialty.specialtyCode;
+        this.specialtyName = specialty.specialtyName;
+    }
+    
     public HPDSpecialtyModel(String ldapSpecialtyAttribute) {
         String[] parts = ldapSpecialtyAttribute.split(":");
         //Ok, does this look like a standard HPD 'structured' attribute in the AuthorityOID:AuthorityName:CODE:Label format?
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.exceptions.MalformedOrInvalidHPDRequestResponse;
+import com.mirth.mail.hpd.models.HPDEntryRecord;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DSMLResponseParserTest {
+
+    private final DSMLResponseParser parser = new DSMLResponseParser();
+
+    //Writes down everything the parser hands over as "requestId|..." strings
+    private static class RecordingHandler implements DSMLResponseParser.EntryHandler {
+
+        final List<String> entries = new ArrayList<String>();
+        final List<String> dones = new ArrayList<String>();
+        final List<HPDEntryRecord> records = new ArrayList<HPDEntryRecord>();
+
+        @Override
+        public void handleEntry(String requestId, HPDEntryRecord entry) {
+            entries.add(requestId + "|" + entry.getDN());
+            records.add(entry);
+        }
+
+        @Override
+        public void handleResultDone(String requestId, int resultCode, String errorMessage) {
+            dones.add(requestId + "|" + resultCode + "|" + errorMessage);
+        }
+    }
+
+    private static String entry(String dn, String requestId) {
+        return "<searchResultEntry dn='" + dn + "'" + (requestId == null ? "" : " requestID='" + requestId + "'") + ">"
+                + "<attr name='uid'><value>" + dn + "</value></attr></searchResultEntry>";
+    }
+
+    private static String done(int code, String requestId) {
+        return "<searchResultDone" + (requestId == null ? "" : " requestID='" + requestId + "'") + "><resultCode code='" + code + "'/></searchResultDone>";
+    }
+
+    private RecordingHandler parse(String batchResponse) throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        parser.parse(new StringReader(batchResponse), handler);
+        return handler;
+    }
+
+    @Test
+    public void entriesTakeTheRequestIdOfTheirSearchResponse() throws Exception {
+        RecordingHandler handler = parse("<batchResponse>"
+                + "<searchResponse requestID='b-0'>" + entry("uid=a", null) + entry("uid=b", null) + done(0, null) + "</searchResponse>"
+                + "<searchResponse requestID='b-1'>" + entry("uid=c", null) + done(0, null) + "</searchResponse>"
+                + "</batchResponse>");
+        assertEquals(Arrays.asList("b-0|uid=a", "b-0|uid=b", "b-1|uid=c"), handler.entries);
+        assertEquals(Arrays.asList("b-0|0|null", "b-1|0|null"), handler.dones);
+    }
+
+    @Test
+    public void requestIdOnTheEntryOrDoneWins() throws Exception {
+        RecordingHandler handler = parse("<batchResponse><searchResponse requestID='b-0'>"
+                + entry("uid=a", "b-1") + entry("uid=b", null) + done(0, "b-1")
+                + "</searchResponse></batchResponse>");
+        assertEquals(Arrays.asList("b-1|uid=a", "b-0|uid=b"), handler.entries);
+        assertEquals(Arrays.asList("b-1|0|null"), handler.dones);
+    }
+
+    @Test
+    public void requestIdIsNullWhenNotSent() throws Exception {
+        RecordingHandler handler = parse("<batchResponse><searchResponse>" + entry("uid=a", null) + done(0, null) + "</searchResponse></batchResponse>");
+        assertEquals(Arrays.asList("null|uid=a"), handler.entries);
+        assertEquals(Arrays.asList("null|0|null"), handler.dones);
+    }
+
+    @Test
+    public void reportsSizeAndTimeLimitsPerRequest() throws Exception {
+        RecordingHandler handler = parse("<batchResponse>"
+                + "<searchResponse requestID='b-0'>" + entry("uid=a", null)
+                + "<searchResultDone><resultCode code='4'/><errorMessage>Size limit exceeded</errorMessage></searchResultDone></searchResponse>"
+                + "<searchResponse requestID='b-1'>" + done(Constants.LDAP_TIME_LIMIT_EXCEEDED, null) + "</searchResponse>"
+                + "</batchResponse>");
+        assertEquals(Arrays.asList("b-0|uid=a"), handler.entries);
+        assertEquals(Arrays.asList("b-0|" + Constants.LDAP_SIZE_LIMIT_EXCEEDED + "|Size limit exceeded", "b-1|3|null"), handler.dones);
+    }
+
+    @Test
+    public void ignoresPrefixesAndTheSoapEnvelope() throws Exception {
+        String response = "<?xml version='1.0' encoding='UTF-8'?>"
+                + "<soap:Envelope xmlns:soap='http://www.w3.org/2003/05/soap-envelope'><soap:Body>"
+                + "<dsml:batchResponse><dsml:searchResponse requestID='r'>"
+                + "<dsml:searchResultEntry dn='uid=a'><dsml:attribute name='sn'><dsml:value>Smith</dsml:value><dsml:value>Smyth</dsml:value></dsml:attribute><dsml:attr><dsml:value>nameless</dsml:value></dsml:attr></dsml:searchResultEntry>"
+                + "<dsml:searchResultDone><dsml:resultCode code='0'/></dsml:searchResultDone>"
+                + "</dsml:searchResponse></dsml:batchResponse></soap:Body></soap:Envelope>";
+        RecordingHandler handler = new RecordingHandler();
+        parser.parse(new ByteArrayInputStream(response.getBytes("UTF-8")), null, handler);
+        assertEquals(Arrays.asList("r|uid=a"), handler.entries);
+        assertEquals(Arrays.asList("Smith", "Smyth"), handler.records.get(0).getValues("sn"));
+        assertEquals(1, handler.records.get(0).getAttrs().size());
+        assertEquals(Arrays.asList("r|0|null"), handler.dones);
+    }
+
+    @Test(expected = MalformedOrInvalidHPDRequestResponse.class)
+    public void errorResponseFails() throws Exception {
+        parse("<batchResponse><errorResponse type='malformedRequest'/></batchResponse>");
+    }
+
+    @Test(expected = MalformedOrInvalidHPDRequestResponse.class)
+    public void searchResultDoneWithoutResultCodeFails() throws Exception {
+        parse("<batchResponse><searchResponse><searchResultDone></searchResultDone></searchResponse></batchResponse>");
+    }
+
+    @Test(expected = MalformedOrInvalidHPDRequestResponse.class)
+    public void entryWithoutDnFails() throws Exception {
+        parse("<batchResponse><searchResponse><searchResultEntry/></searchResponse></batchResponse>");
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.HPDSearchRequest.HPDSearchScope;
+import com.mirth.mail.hpd.models.HPDEntityModel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDAsyncSearchTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicBoolean interrupted = new AtomicBoolean();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile HPDSearchResult merged;
+
+    private final HPDSearchListener listener = new HPDSearchListener() {
+        @Override
+        public void onDirectoryResult(String directoryId, HPDSearchResult directoryResult) {
+        }
+
+        @Override
+        public void onEntity(HPDEntityModel entity) {
+        }
+
+        @Override
+        public void onComplete(HPDSearchResult result) {
+            merged = result;
+            completed.countDown();
+        }
+    };
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    //A directory search that answers once released, or notes that it was interrupted
+    private HPDSearchFuture<HPDSearchResult> directorySearch(final String directoryId) {
+        return new HPDSearchFuture<HPDSearchResult>(new Callable<HPDSearchResult>() {
+            @Override
+            public HPDSearchResult call() {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    interrupted.set(true);
+                    Thread.currentThread().interrupt();
+                }
+                return new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, "answered by " + directoryId);
+            }
+        });
+    }
+
+    private HPDAsyncSearch start(String... directoryIds) {
+        HPDAsyncSearch asyncSearch = new HPDAsyncSearch(new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, directoryIds[0]), 1000, null, listener, executor);
+        for (String directoryId : directoryIds) {
+            asyncSearch.addDirectorySearch(directoryId, directorySearch(directoryId));
+        }
+        asyncSearch.start(executor);
+        return asyncSearch;
+    }
+
+    @Test
+    public void completingTheFuturesWeHandOutDoesntChangeTheSearch() throws Exception {
+        HPDAsyncSearch asyncSearch = start("d1", "d2");
+        assertTrue(asyncSearch.getDirectoryResult("d2").complete(new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, "made up")));
+        asyncSearch.getDirectoryResult("d1").obtrudeValue(new HPDSearchResult(HPDResult.HPD_OPERATION_SUCCESS, "made up"));
+        assertTrue(asyncSearch.getResult().complete(new HPDSearchResult()));
+        release.countDown();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals("answered by d1", merged.getDirectorySearchResults().get("d1").getResultMsg());
+        assertEquals("answered by d2", merged.getDirectorySearchResults().get("d2").getResultMsg());
+        //The caller still has what they completed theirs with
+        assertEquals("made up", asyncSearch.getDirectoryResult("d2").get().getResultMsg());
+    }
+
+    @Test
+    public void futuresWeHandOutCompleteWithTheSearch() throws Exception {
+        HPDAsyncSearch asyncSearch = start("d1");
+        release.countDown();
+        assertEquals("answered by d1", asyncSearch.getDirectoryResult("d1").get(5, TimeUnit.SECONDS).getResultMsg());
+        assertEquals("answered by d1", asyncSearch.getResult().get(5, TimeUnit.SECONDS).getDirectorySearchResults().get("d1").getResultMsg());
+    }
+
+    @Test
+    public void cancellingTheResultCancelsTheSearch() throws Exception {
+        HPDAsyncSearch asyncSearch = start("d1", "d2");
+        Thread.sleep(100);
+        assertTrue(asyncSearch.getResult().cancel(false));
+        assertTrue(asyncSearch.getResult().isCancelled());
+        assertTrue(asyncSearch.getDirectoryResult("d1").isCancelled());
+        assertTrue(asyncSearch.getDirectoryResult("d2").isCancelled());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void cancellingADirectoryCancelsJustItsSearch() throws Exception {
+        HPDAsyncSearch asyncSearch = start("d1", "d2");
+        Thread.sleep(100);
+        assertTrue(asyncSearch.getDirectoryResult("d1").cancel(true));
+        release.countDown();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(HPDResult.HPD_DEADLINE_EXCEEDED, merged.getDirectorySearchResults().get("d1").getResultCode());
+        assertEquals("answered by d2", merged.getDirectorySearchResults().get("d2").getResultMsg());
+        assertFalse(asyncSearch.getResult().isCancelled());
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDCacheTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    @Test
+    public void hitsUntilTheTTLRunsOut() {
+        HPDCache<String> cache = new HPDCache<String>(10);
+        cache.put("live", "a", HOUR_MS);
+        cache.put("expired", "b", 0);
+        assertEquals("a", cache.get("live"));
+        assertNull(cache.get("expired"));
+        assertNull(cache.get("missing"));
+        //With no stale window an expired entry goes as soon as it's looked up
+        assertEquals(1, cache.size());
+
+        HPDCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(1, stats.getExpirations());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        HPDCache<String> cache = new HPDCache<String>(2);
+        cache.put("a", "a", HOUR_MS);
+        cache.put("b", "b", HOUR_MS);
+        //a is now more recently used than b
+        cache.get("a");
+        cache.put("c", "c", HOUR_MS);
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("c", cache.get("c"));
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void putReplaces() {
+        HPDCache<String> cache = new HPDCache<String>(2);
+        cache.put("a", "old", 0);
+        cache.put("a", "new", HOUR_MS);
+        assertEquals("new", cache.get("a"));
+        cache.remove("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void purgeAndClear() {
+        HPDCache<String> cache = new HPDCache<String>(10);
+        cache.put("live", "a", HOUR_MS);
+        cache.put("expired", "b", 0);
+        cache.purgeExpired(0);
+        assertEquals(1, cache.size());
+        cache.get("live");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getStats().getHits());
+    }
+
+    @Test
+    public void keepsExpiredEntriesForGetStale() {
+        HPDCache<String> cache = new HPDCache<String>(10, true);
+        cache.put("live", "a", HOUR_MS);
+        cache.put("expired", "b", -1000);
+        assertNull(cache.get("expired"));
+        assertEquals(2, cache.size());
+
+        //Only expired entries are stale, and only within the window the caller asks for
+        assertNull(cache.getStale("live", HOUR_MS));
+        assertEquals("b", cache.getStale("expired", HOUR_MS));
+        assertNull(cache.getStale("expired", 500));
+        assertEquals("b", cache.getStale("expired", HOUR_MS));
+        assertNull(cache.getStale("missing", HOUR_MS));
+        assertEquals(2, cache.getStats().getStaleHits());
+
+        //Asking for a tighter window doesn't lose the entry for callers that allow a wider one
+        assertEquals(2, cache.size());
+        cache.purgeExpired(HOUR_MS);
+        assertEquals(2, cache.size());
+        cache.purgeExpired(500);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void restoreKeepsWhatsAlreadyCached() {
+        HPDCache<String> cache = new HPDCache<String>(10);
+        cache.put("a", "new", HOUR_MS);
+        cache.restore("a", "old", System.currentTimeMillis() + HOUR_MS);
+        cache.restore("b", "restored", System.currentTimeMillis() + HOUR_MS);
+        cache.restore("c", "expired", System.currentTimeMillis() - 1);
+        assertEquals("new", cache.get("a"));
+        assertEquals("restored", cache.get("b"));
+        assertNull(cache.get("c"));
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDCircuitBreakerTest {
+
+    private static HPDResult result(int resultCode) {
+        return new HPDResult(resultCode, "code " + resultCode);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        HPDCircuitBreaker breaker = new HPDCircuitBreaker("hpd", 3);
+        assertFalse(breaker.recordResult(result(HPDResult.HPD_CONNECT_TIMEOUT)));
+        assertFalse(breaker.recordResult(result(HPDResult.HPD_CONNECTION_REFUSED)));
+        assertTrue(breaker.allowRequest());
+        //Only the failure that opens it says so
+        assertTrue(breaker.recordResult(result(HPDResult.HPD_UNKNOWN_HOST)));
+        assertFalse(breaker.recordResult(result(HPDResult.HPD_UNKNOWN_HOST)));
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+        assertEquals("code " + HPDResult.HPD_UNKNOWN_HOST, breaker.getLastFailureMsg());
+        assertTrue(breaker.getOpenedTime() > 0);
+    }
+
+    @Test
+    public void anAnswerResetsTheCount() {
+        HPDCircuitBreaker breaker = new HPDCircuitBreaker("hpd", 2);
+        breaker.recordResult(result(HPDResult.HPD_RESPONSE_TIMEOUT));
+        //The HPD didn't like the search, but it answered
+        breaker.recordResult(result(HPDResult.HPD_MALFORMED_OR_INVALID_DSML_REQUEST));
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertFalse(breaker.recordResult(result(HPDResult.HPD_RESPONSE_TIMEOUT)));
+        assertEquals(HPDCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void deadlineExceededIsNeitherFailureNorSuccess() {
+        HPDCircuitBreaker breaker = new HPDCircuitBreaker("hpd", 2);
+        breaker.recordResult(result(HPDResult.HPD_CONNECT_TIMEOUT));
+        assertFalse(breaker.recordResult(result(HPDResult.HPD_DEADLINE_EXCEEDED)));
+        assertEquals(1, breaker.getConsecutiveFailures());
+        assertTrue(breaker.recordResult(result(HPDResult.HPD_CONNECT_TIMEOUT)));
+    }
+
+    @Test
+    public void probeClosesOrReopens() {
+        HPDCircuitBreaker breaker = new HPDCircuitBreaker("hpd", 1);
+        assertTrue(breaker.recordResult(result(HPDResult.HPD_CONNECT_ERROR)));
+        int generation = breaker.newProbeChain();
+
+        assertTrue(breaker.probeStarted(generation));
+        assertEquals(HPDCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.probeFinished(result(HPDResult.HPD_CONNECT_TIMEOUT)));
+        assertEquals(HPDCircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.probeStarted(generation));
+        assertFalse(breaker.probeFinished(result(HPDResult.HPD_DEADLINE_EXCEEDED)));
+        assertEquals(HPDCircuitBreaker.State.OPEN, breaker.getState());
+
+        assertTrue(breaker.probeStarted(generation));
+        assertTrue(breaker.probeFinished(result(HPDResult.HPD_OPERATION_SUCCESS)));
+        assertEquals(HPDCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void resetCloses() {
+        HPDCircuitBreaker breaker = new HPDCircuitBreaker("hpd", 1);
+        breaker.recordResult(result(HPDResult.HPD_CONNECT_ERROR));
+        breaker.reset();
+        assertTrue(breaker.allowRequest());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void onlyTheLatestProbeChainRuns() {
+        HPDCircuitBreaker breaker = new HPDCircuitBreaker("hpd", 1);
+        assertTrue(breaker.recordResult(result(HPDResult.HPD_CONNECT_ERROR)));
+        int first = breaker.newProbeChain();
+
+        //Reset while the first chain's probe is waiting, then open again before it runs
+        breaker.reset();
+        assertTrue(breaker.recordResult(result(HPDResult.HPD_CONNECT_ERROR)));
+        int second = breaker.newProbeChain();
+        assertFalse(breaker.probeStarted(first));
+        assertEquals(HPDCircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.probeStarted(second));
+        assertFalse(breaker.probeFinished(result(HPDResult.HPD_CONNECT_ERROR)));
+
+        //A reset stops the chain even with nothing else to replace it
+        breaker.reset();
+        assertFalse(breaker.probeStarted(second));
+    }
+}
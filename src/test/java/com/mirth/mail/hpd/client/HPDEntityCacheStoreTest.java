@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.models.HPDBaseModel;
+import com.mirth.mail.hpd.models.HPDCredentialModel;
+import com.mirth.mail.hpd.models.HPDElectronicServiceModel;
+import com.mirth.mail.hpd.models.HPDEntityModel;
+import com.mirth.mail.hpd.models.HPDEntryRecord;
+import com.mirth.mail.hpd.models.HPDInstanceModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDEntityCacheStoreTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private final HPDInstanceModel hpd = new HPDInstanceModel();
+    private File file;
+
+    //What a load handed over, by directory and DN
+    private final Map<String, HPDBaseModel> loaded = new LinkedHashMap<String, HPDBaseModel>();
+    private final HPDEntityCacheStore.Sink sink = new HPDEntityCacheStore.Sink() {
+        @Override
+        public HPDInstanceModel getInstance(String directoryKey) {
+            return directoryKey.equals("hpd1") ? hpd : null;
+        }
+
+        @Override
+        public synchronized void entryLoaded(String directoryKey, String dnKey, HPDBaseModel entry, long expiryTime) {
+            loaded.put(directoryKey + "|" + dnKey, entry);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        hpd.setId("HPD1");
+        hpd.setName("Test HPD");
+        file = File.createTempFile("hpd-entity-cache", ".dat");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    private HPDCredentialModel credential(String id, String number) throws Exception {
+        HPDEntryRecord entry = new HPDEntryRecord("hpdCredentialId=" + id + ",ou=HPDCredential,o=Test");
+        entry.addValue("hpdCredentialId", id);
+        entry.addValue("credentialNumber", number);
+        return new HPDCredentialModel(hpd, entry);
+    }
+
+    private HPDElectronicServiceModel service(String id, String address) throws Exception {
+        HPDEntryRecord entry = new HPDEntryRecord("hpdServiceId=" + id + ",ou=Services,o=Test");
+        entry.addValue("hpdServiceId", id);
+        entry.addValue("hpdServiceAddress", address);
+        return new HPDElectronicServiceModel(hpd, entry);
+    }
+
+    private HPDEntityModel org(String uid, String name) throws Exception {
+        HPDEntryRecord entry = new HPDEntryRecord("uid=" + uid + ",ou=HCRegulatedOrganization,o=Test");
+        entry.addValue("uid", uid);
+        entry.addValue("o", name);
+        entry.addValue("objectClass", "top");
+        entry.addValue("objectClass", "hcRegulatedOrganization");
+        return new HPDEntityModel(hpd, entry);
+    }
+
+    private Map<String, HPDBaseModel> load() {
+        loaded.clear();
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        store.load();
+        store.close();
+        return loaded;
+    }
+
+    private static String key(HPDBaseModel entry) {
+        return "hpd1|" + entry.getDN().toLowerCase();
+    }
+
+    @Test
+    public void entriesSurviveARestart() throws Exception {
+        HPDCredentialModel credential = credential("c1", "12345");
+        HPDElectronicServiceModel service = service("s1", "doc@direct.example.com");
+        HPDEntityModel org = org("auth:o1", "Mercy Hospital");
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        store.append("hpd1", Arrays.asList(credential, service, org), System.currentTimeMillis() + HOUR_MS);
+        store.close();
+
+        Map<String, HPDBaseModel> entries = load();
+        assertEquals(3, entries.size());
+        HPDCredentialModel loadedCredential = (HPDCredentialModel) entries.get(key(credential));
+        assertEquals("12345", loadedCredential.getNumber());
+        assertEquals("HPD1", loadedCredential.getDirectoryId());
+        assertEquals("doc@direct.example.com", ((HPDElectronicServiceModel) entries.get(key(service))).getServiceAddress());
+        HPDEntityModel loadedOrg = (HPDEntityModel) entries.get(key(org));
+        assertEquals("Mercy Hospital", loadedOrg.getOrgName());
+        assertEquals(org.getEntityAttrs(), loadedOrg.getEntityAttrs());
+    }
+
+    @Test
+    public void laterRecordsReplaceEarlierOnesAndExpiredOnesAreSkipped() throws Exception {
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        store.append("hpd1", Collections.singletonList(credential("c1", "old")), System.currentTimeMillis() + HOUR_MS);
+        store.append("hpd1", Collections.singletonList(credential("c1", "new")), System.currentTimeMillis() + HOUR_MS);
+        store.append("hpd1", Collections.singletonList(credential("c2", "expired")), System.currentTimeMillis() - 1);
+        //A directory that's no longer configured
+        store.append("hpd2", Collections.singletonList(credential("c3", "gone")), System.currentTimeMillis() + HOUR_MS);
+        store.close();
+
+        Map<String, HPDBaseModel> entries = load();
+        assertEquals(1, entries.size());
+        assertEquals("new", ((HPDCredentialModel) entries.get(key(credential("c1", "")))).getNumber());
+    }
+
+    @Test
+    public void recoversFromARecordCutShort() throws Exception {
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        store.append("hpd1", Arrays.asList(credential("c1", "1"), credential("c2", "2")), System.currentTimeMillis() + HOUR_MS);
+        store.close();
+        //As if we crashed part way through writing c2
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        //c2 is lost, and the partial record is cut off so appends after it can be read back
+        store = new HPDEntityCacheStore(file, sink);
+        store.load();
+        store.append("hpd1", Collections.singletonList(credential("c3", "3")), System.currentTimeMillis() + HOUR_MS);
+        store.close();
+        assertEquals(1, loaded.size());
+
+        Map<String, HPDBaseModel> entries = load();
+        assertEquals(2, entries.size());
+        assertTrue(entries.containsKey(key(credential("c1", ""))));
+        assertTrue(entries.containsKey(key(credential("c3", ""))));
+    }
+
+    @Test
+    public void ignoresAFileThatIsntOurs() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("not an entity cache");
+        raf.close();
+        assertTrue(load().isEmpty());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void compactsDownToTheLiveRecords() throws Exception {
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        List<HPDBaseModel> entries = new ArrayList<HPDBaseModel>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(credential("c" + i, String.valueOf(i)));
+        }
+        long expiryTime = System.currentTimeMillis() + HOUR_MS;
+        store.append("hpd1", entries, expiryTime);
+        store.close();
+        long liveLength = file.length();
+
+        //The same ten entries over and over, until the check after COMPACTION_CHECK_INTERVAL appends rewrites the file
+        store = new HPDEntityCacheStore(file, sink);
+        for (int i = 0; i < HPDEntityCacheStore.COMPACTION_CHECK_INTERVAL / entries.size(); i++) {
+            store.append("hpd1", entries, expiryTime);
+        }
+        store.close();
+        assertEquals(liveLength, file.length());
+        assertFalse(new File(file.getPath() + ".compact").exists());
+
+        Map<String, HPDBaseModel> loadedEntries = load();
+        assertEquals(10, loadedEntries.size());
+        assertEquals("7", ((HPDCredentialModel) loadedEntries.get(key(entries.get(7)))).getNumber());
+    }
+
+    @Test
+    public void clearForgetsWhatsOnDisk() throws Exception {
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        store.append("hpd1", Collections.singletonList(credential("c1", "1")), System.currentTimeMillis() + HOUR_MS);
+        store.clear();
+        store.append("hpd1", Collections.singletonList(credential("c2", "2")), System.currentTimeMillis() + HOUR_MS);
+        store.close();
+
+        Map<String, HPDBaseModel> entries = load();
+        assertEquals(1, entries.size());
+        assertTrue(entries.containsKey(key(credential("c2", ""))));
+    }
+
+    @Test
+    public void clearStopsALoadThatHasntHandedOverYet() throws Exception {
+        HPDEntityCacheStore store = new HPDEntityCacheStore(file, sink);
+        store.append("hpd1", Collections.singletonList(credential("c1", "1")), System.currentTimeMillis() + HOUR_MS);
+        store.close();
+
+        loaded.clear();
+        store = new HPDEntityCacheStore(file, sink);
+        store.load();
+        store.clear();
+        store.close();
+        assertTrue(loaded.isEmpty());
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDHedgeBudgetTest {
+
+    @Test
+    public void noHedgeUntilEarned() {
+        HPDHedgeBudget budget = new HPDHedgeBudget(10);
+        assertFalse(budget.tryHedge());
+        for (int i = 0; i < 9; i++) {
+            budget.callMade();
+        }
+        assertFalse(budget.tryHedge());
+        budget.callMade();
+        budget.callMade();
+        assertTrue(budget.tryHedge());
+        assertFalse(budget.tryHedge());
+    }
+
+    @Test
+    public void savingsAreCapped() {
+        HPDHedgeBudget budget = new HPDHedgeBudget(50);
+        for (int i = 0; i < 1000; i++) {
+            budget.callMade();
+        }
+        int hedges = 0;
+        while (budget.tryHedge()) {
+            hedges++;
+        }
+        assertEquals(10, hedges);
+    }
+
+    @Test
+    public void zeroPercentNeverHedges() {
+        HPDHedgeBudget budget = new HPDHedgeBudget(0);
+        for (int i = 0; i < 1000; i++) {
+            budget.callMade();
+        }
+        assertFalse(budget.tryHedge());
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDLatencyTrackerTest {
+
+    @Test
+    public void noQuantileUntilEnoughSamples() {
+        HPDLatencyTracker tracker = new HPDLatencyTracker();
+        for (int i = 1; i < HPDLatencyTracker.MIN_SAMPLES; i++) {
+            tracker.record(i);
+        }
+        assertEquals(-1, tracker.getQuantile(0.95));
+        tracker.record(HPDLatencyTracker.MIN_SAMPLES);
+        assertEquals(HPDLatencyTracker.MIN_SAMPLES, tracker.getSampleCount());
+        assertEquals(19, tracker.getQuantile(0.95));
+        assertEquals(10, tracker.getQuantile(0.5));
+        assertEquals(1, tracker.getQuantile(0));
+        assertEquals(20, tracker.getQuantile(1));
+    }
+
+    @Test
+    public void quantilesIgnoreOrder() {
+        HPDLatencyTracker tracker = new HPDLatencyTracker();
+        for (int i = 100; i >= 1; i--) {
+            tracker.record(i);
+        }
+        assertEquals(95, tracker.getQuantile(0.95));
+        assertEquals(99, tracker.getQuantile(0.99));
+    }
+
+    @Test
+    public void onlyRecentSamplesCount() {
+        HPDLatencyTracker tracker = new HPDLatencyTracker();
+        for (int i = 0; i < HPDLatencyTracker.SAMPLE_SIZE; i++) {
+            tracker.record(5000);
+        }
+        //The HPD got fast again
+        for (int i = 0; i < HPDLatencyTracker.SAMPLE_SIZE; i++) {
+            tracker.record(10);
+        }
+        assertEquals(HPDLatencyTracker.SAMPLE_SIZE, tracker.getSampleCount());
+        assertEquals(10, tracker.getQuantile(0.99));
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.HPDSearchRequest.HPDSearchMode;
+import com.mirth.mail.hpd.client.HPDSearchRequest.HPDSearchScope;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDSearchRequestTest {
+
+    private static HPDSearchRequest byName(String directoryId, String lastName) {
+        HPDSearchRequest request = new HPDSearchRequest(directoryId, HPDSearchScope.IndividualProvidersOnly, HPDSearchMode.Equality, lastName);
+        request.setLastName(lastName);
+        return request;
+    }
+
+    @Test
+    public void fingerprintIgnoresCaseAndWhitespace() {
+        assertEquals(byName("d1", "Smith").getCriteriaFingerprint(), byName("d1", "  SMITH ").getCriteriaFingerprint());
+        assertNotEquals(byName("d1", "Smith").getCriteriaFingerprint(), byName("d1", "Smyth").getCriteriaFingerprint());
+    }
+
+    @Test
+    public void fingerprintIgnoresDirectoriesAndDeadlines() {
+        HPDSearchRequest other = byName("d2", "Smith");
+        other.getDirectoryIds().add("d3");
+        other.setDeadlineMillis(System.currentTimeMillis() + 1000);
+        other.setTimeLimitSeconds(5);
+        assertEquals(byName("d1", "Smith").getCriteriaFingerprint(), other.getCriteriaFingerprint());
+    }
+
+    @Test
+    public void fingerprintCoversScopeModesAndLimits() {
+        String fingerprint = byName("d1", "Smith").getCriteriaFingerprint();
+
+        HPDSearchRequest scope = byName("d1", "Smith");
+        scope.setSearchScope(HPDSearchScope.AllEntities);
+        assertNotEquals(fingerprint, scope.getCriteriaFingerprint());
+
+        HPDSearchRequest limit = byName("d1", "Smith");
+        limit.setResultSizeLimit(limit.getResultSizeLimit() + 1);
+        assertNotEquals(fingerprint, limit.getCriteriaFingerprint());
+
+        HPDSearchRequest serviceMode = byName("d1", "Smith");
+        serviceMode.setServiceSearchMode(HPDSearchMode.Contains);
+        assertNotEquals(fingerprint, serviceMode.getCriteriaFingerprint());
+
+        HPDSearchRequest allAttributes = byName("d1", "Smith");
+        allAttributes.setReturnAllAttributes(true);
+        assertNotEquals(fingerprint, allAttributes.getCriteriaFingerprint());
+    }
+
+    @Test
+    public void fingerprintSortsDNListsAndDropsBlanks() {
+        HPDSearchRequest first = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        first.addIndividualProviderDN("uid=b,o=x");
+        first.addIndividualProviderDN("uid=a,o=x");
+        HPDSearchRequest second = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        second.setIndividualProviderDNs(new ArrayList<String>(Arrays.asList("UID=A,o=x", " ", "uid=b,o=x")));
+        assertEquals(first.getCriteriaFingerprint(), second.getCriteriaFingerprint());
+
+        //Unset and empty are the same thing
+        HPDSearchRequest none = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        HPDSearchRequest empty = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        empty.setIndividualProviderDNs(new ArrayList<String>());
+        assertEquals(none.getCriteriaFingerprint(), empty.getCriteriaFingerprint());
+    }
+
+    @Test
+    public void fingerprintTellsFieldsApart() {
+        HPDSearchRequest lastName = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        lastName.setLastName("Jo");
+        HPDSearchRequest firstName = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        firstName.setFirstName("Jo");
+        assertNotEquals(lastName.getCriteriaFingerprint(), firstName.getCriteriaFingerprint());
+    }
+
+    @Test
+    public void identifierLookupOfASingleIdentifier() {
+        HPDSearchRequest npi = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        npi.setNpi(" 1234567890 ");
+        assertEquals("npi=1234567890", npi.getIdentifierLookup());
+
+        HPDSearchRequest address = new HPDSearchRequest(HPDSearchScope.AllEntities, "d1");
+        address.setServiceAddressText("Doc@Direct.Example.com");
+        assertEquals("serviceAddressText=doc@direct.example.com", address.getIdentifierLookup());
+
+        //Search settings don't make it any less of a lookup
+        npi.setServiceSearchMode(HPDSearchMode.Contains);
+        assertEquals("npi=1234567890", npi.getIdentifierLookup());
+    }
+
+    @Test
+    public void identifierLookupNeedsExactlyOneIdentifierAndNothingElse() {
+        HPDSearchRequest none = byName("d1", "Smith");
+        assertNull(none.getIdentifierLookup());
+
+        HPDSearchRequest narrowed = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        narrowed.setNpi("1234567890");
+        narrowed.setLastName("Smith");
+        assertNull(narrowed.getIdentifierLookup());
+
+        HPDSearchRequest both = new HPDSearchRequest(HPDSearchScope.IndividualProvidersOnly, "d1");
+        both.setNpi("1234567890");
+        both.setUID("jsmith");
+        assertNull(both.getIdentifierLookup());
+    }
+
+    @Test
+    public void identifierLookupsWithDifferentSettingsFingerprintApart() {
+        //The negative cache keys on the fingerprint, so a miss under one search mode mustn't answer another
+        HPDSearchRequest equality = new HPDSearchRequest(HPDSearchScope.AllEntities, "d1");
+        equality.setServiceAddressText("doc@direct.example.com");
+        HPDSearchRequest contains = new HPDSearchRequest(HPDSearchScope.AllEntities, "d1");
+        contains.setServiceAddressText("doc@direct.example.com");
+        contains.setServiceSearchMode(HPDSearchMode.Contains);
+        assertEquals(equality.getIdentifierLookup(), contains.getIdentifierLookup());
+        assertNotEquals(equality.getCriteriaFingerprint(), contains.getCriteriaFingerprint());
+    }
+}
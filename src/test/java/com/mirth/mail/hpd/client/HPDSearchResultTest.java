@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.models.HPDContactModel;
+import com.mirth.mail.hpd.models.HPDEntityModel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDSearchResultTest {
+
+    private static HPDSearchResult newResult() {
+        HPDEntityModel entity = new HPDEntityModel();
+        entity.setDN("uid=a:1,ou=HCProfessional,o=x");
+        entity.setSurname("Smith");
+        entity.getContacts().add(new HPDContactModel("mail", "smith@example.com"));
+        HPDSearchResult directoryResult = new HPDSearchResult();
+        directoryResult.addEntity(entity);
+        directoryResult.getPhaseStatuses().put(HPDSearchPhase.ENTITIES, HPDSearchPhase.Status.DONE);
+        HPDSearchResult result = new HPDSearchResult();
+        result.setResultMsg("Search returned 1 entities");
+        result.setTruncated(true);
+        result.addEntity(entity);
+        result.addDirectorySearchResult("a", directoryResult);
+        result.addDirectorySearchResult("b", new HPDResult(HPDResult.HPD_CONNECT_TIMEOUT, "Timed out"));
+        return result;
+    }
+
+    @Test
+    public void copyHasTheSameContents() {
+        HPDSearchResult result = newResult();
+        HPDSearchResult copy = new HPDSearchResult(result);
+        assertEquals(result.getResultMsg(), copy.getResultMsg());
+        assertTrue(copy.isTruncated());
+        assertEquals("Smith", copy.getEntities().get(0).getSurname());
+        assertEquals("smith@example.com", copy.getEntities().get(0).getContacts().get(0).getContactAddress());
+        HPDSearchResult directoryCopy = (HPDSearchResult) copy.getDirectorySearchResults().get("a");
+        assertEquals(HPDSearchPhase.Status.DONE, directoryCopy.getPhaseStatus(HPDSearchPhase.ENTITIES));
+        assertEquals(HPDResult.HPD_CONNECT_TIMEOUT, copy.getDirectorySearchResults().get("b").getResultCode());
+    }
+
+    @Test
+    public void copySharesNothingWithTheOriginal() {
+        HPDSearchResult result = newResult();
+        HPDSearchResult copy = new HPDSearchResult(result);
+        copy.getEntities().get(0).setSurname("Jones");
+        copy.getEntities().get(0).getContacts().clear();
+        copy.getDirectorySearchResults().get("b").setResultMsg("Changed");
+        ((HPDSearchResult) copy.getDirectorySearchResults().get("a")).getPhaseStatuses().clear();
+        copy.getEntities().clear();
+
+        assertEquals("Smith", result.getEntities().get(0).getSurname());
+        assertEquals(1, result.getEntities().get(0).getContacts().size());
+        assertEquals("Timed out", result.getDirectorySearchResults().get("b").getResultMsg());
+        HPDSearchResult directoryResult = (HPDSearchResult) result.getDirectorySearchResults().get("a");
+        assertEquals(HPDSearchPhase.Status.DONE, directoryResult.getPhaseStatus(HPDSearchPhase.ENTITIES));
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.client;
+
+import com.mirth.mail.hpd.client.exceptions.HPDDeadlineExceededException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDSingleFlightTest {
+
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger copies = new AtomicInteger();
+    private final HPDSingleFlight<int[]> flights = new HPDSingleFlight<int[]>() {
+        @Override
+        int[] copy(int[] value) {
+            copies.incrementAndGet();
+            return value.clone();
+        }
+    };
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    //A call that counts itself and then holds until released
+    private static Callable<int[]> heldCall(final AtomicInteger calls, final CountDownLatch started, final CountDownLatch release) {
+        return new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return new int[]{42};
+            }
+        };
+    }
+
+    private Future<int[]> submit(final String key, final Callable<int[]> call, final long deadline) {
+        return executor.submit(new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                return flights.execute(key, call, deadline);
+            }
+        });
+    }
+
+    //Joining happens on another thread, so give it a moment
+    private static void letFollowersJoin() throws InterruptedException {
+        Thread.sleep(200);
+    }
+
+    @Test
+    public void overlappingCallsShareOneAnswer() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + MINUTE_MS;
+        Future<int[]> leader = submit("k", heldCall(calls, started, release), deadline);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Future<int[]>> followers = new ArrayList<Future<int[]>>();
+        for (int i = 0; i < 3; i++) {
+            followers.add(submit("k", heldCall(calls, started, release), deadline));
+        }
+        letFollowersJoin();
+        release.countDown();
+
+        List<int[]> answers = new ArrayList<int[]>();
+        answers.add(leader.get(5, TimeUnit.SECONDS));
+        for (Future<int[]> follower : followers) {
+            answers.add(follower.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        //Everyone, the leader included, gets their own copy
+        assertEquals(4, copies.get());
+        for (int i = 0; i < answers.size(); i++) {
+            assertEquals(42, answers.get(i)[0]);
+            for (int j = i + 1; j < answers.size(); j++) {
+                assertNotSame(answers.get(i), answers.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void callsThatDontOverlapAreNotShared() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<int[]> call = new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                calls.incrementAndGet();
+                return new int[]{calls.get()};
+            }
+        };
+        long deadline = System.currentTimeMillis() + MINUTE_MS;
+        assertEquals(1, flights.execute("k", call, deadline)[0]);
+        assertEquals(2, flights.execute("k", call, deadline)[0]);
+        assertEquals(0, copies.get());
+    }
+
+    @Test
+    public void differentKeysAreNotShared() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + MINUTE_MS;
+        Future<int[]> first = submit("a", heldCall(calls, started, release), deadline);
+        Future<int[]> second = submit("b", heldCall(calls, started, release), deadline);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void followerWithALaterDeadlineMakesItsOwnCall() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + MINUTE_MS;
+        Future<int[]> leader = submit("k", heldCall(calls, started, release), deadline);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger ownCalls = new AtomicInteger();
+        int[] own = flights.execute("k", new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                ownCalls.incrementAndGet();
+                return new int[]{7};
+            }
+        }, deadline + HPDSingleFlight.DEADLINE_SLACK_MS + MINUTE_MS);
+        assertEquals(7, own[0]);
+        assertEquals(1, ownCalls.get());
+
+        release.countDown();
+        assertEquals(42, leader.get(5, TimeUnit.SECONDS)[0]);
+        assertEquals(0, copies.get());
+    }
+
+    @Test
+    public void followerWithinTheSlackJoins() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + MINUTE_MS;
+        Future<int[]> leader = submit("k", heldCall(calls, started, release), deadline);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<int[]> follower = submit("k", heldCall(calls, started, release), deadline + HPDSingleFlight.DEADLINE_SLACK_MS);
+        letFollowersJoin();
+        release.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+        follower.get(5, TimeUnit.SECONDS);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void followerGivesUpAtItsOwnDeadline() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<int[]> leader = submit("k", heldCall(calls, started, release), System.currentTimeMillis() + MINUTE_MS);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            flights.execute("k", heldCall(calls, started, release), System.currentTimeMillis() + 100);
+            fail("Waited past the deadline");
+        } catch (HPDDeadlineExceededException dee) {
+            //Expected
+        }
+        release.countDown();
+        leader.get(5, TimeUnit.SECONDS);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void followersGetTheLeadersFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<int[]> failing = new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                started.countDown();
+                release.await();
+                throw new IllegalStateException("HPD fell over");
+            }
+        };
+        long deadline = System.currentTimeMillis() + MINUTE_MS;
+        Future<int[]> leader = submit("k", failing, deadline);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<int[]> follower = submit("k", failing, deadline);
+        letFollowersJoin();
+        release.countDown();
+        for (Future<int[]> caller : Arrays.<Future<int[]>>asList(leader, follower)) {
+            try {
+                caller.get(5, TimeUnit.SECONDS);
+                fail("Expected the call's failure");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2006-2013 Mirth Corporation.
+ * All rights reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains, the
+ * property of Mirth Corporation. The intellectual and technical
+ * concepts contained herein are proprietary and confidential to
+ * Mirth Corporation and may be covered by U.S. and Foreign
+ * Patents, patents in process, and are protected by trade secret
+ * and/or copyright law. Dissemination of this information or reproduction
+ * of this material is strictly forbidden unless prior written permission
+ * is obtained from Mirth Corporation.
+ */
+package com.mirth.mail.hpd.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HPDBaseModelTest {
+
+    private static HPDBaseModel newModel() {
+        HPDEntryRecord entry = new HPDEntryRecord("uid=a:1,ou=HCProfessional,o=x");
+        entry.addValue("sn", "Smith");
+        entry.addValue("givenName", "Jo");
+        entry.addValue("mail", "");
+        HPDBaseModel model = new HPDBaseModel();
+        model.setEntityAttrsFromEntity(entry);
+        return model;
+    }
+
+    @Test
+    public void lookupsIgnoreCase() {
+        HPDBaseModel model = newModel();
+        assertEquals("Smith", model.getSimpleAttrValue("SN"));
+        assertEquals("Jo", model.getSimpleAttrValue("givenname"));
+        //Blank values are dropped
+        assertEquals("", model.getSimpleAttrValue("mail"));
+        assertTrue(model.getMultiValueAttr("cn").isEmpty());
+    }
+
+    @Test
+    public void seesValuesReplacedThroughGetEntityAttrs() {
+        HPDBaseModel model = newModel();
+        assertEquals("Smith", model.getSimpleAttrValue("sn"));
+        //Same size, so only the replaced list tells the index it's stale
+        model.getEntityAttrs().put("sn", new ArrayList<String>(Arrays.asList("Jones")));
+        assertEquals("Jones", model.getSimpleAttrValue("sn"));
+    }
+
+    @Test
+    public void seesAttributesSwappedThroughAHeldMap() {
+        HPDBaseModel model = newModel();
+        HashMap<String, List<String>> attrs = model.getEntityAttrs();
+        assertEquals("Jo", model.getSimpleAttrValue("givenName"));
+        attrs.remove("givenName");
+        attrs.put("cn", new ArrayList<String>(Arrays.asList("Jo Smith")));
+        assertEquals("", model.getSimpleAttrValue("givenName"));
+        assertEquals("Jo Smith", model.getSimpleAttrValue("cn"));
+    }
+
+    @Test
+    public void seesEntriesChangedThroughSetValue() {
+        HPDBaseModel model = newModel();
+        assertEquals("Smith", model.getSimpleAttrValue("sn"));
+        for (Map.Entry<String, List<String>> attr : model.getEntityAttrs().entrySet()) {
+            if (attr.getKey().equals("sn")) {
+                attr.setValue(new ArrayList<String>(Arrays.asList("Brown")));
+            }
+        }
+        assertEquals("Brown", model.getSimpleAttrValue("sn"));
+    }
+
+    @Test
+    public void seesReplacedMap() {
+        HPDBaseModel model = newModel();
+        assertEquals("Smith", model.getSimpleAttrValue("sn"));
+        HashMap<String, List<String>> attrs = new HashMap<String, List<String>>();
+        attrs.put("SN", new ArrayList<String>(Arrays.asList("Green")));
+        model.setEntityAttrs(attrs);
+        assertEquals("Green", model.getSimpleAttrValue("sn"));
+        assertEquals("", model.getSimpleAttrValue("givenName"));
+    }
+
+    @Test
+    public void copyHasItsOwnAttributes() {
+        HPDBaseModel model = newModel();
+        HPDBaseModel copy = new HPDBaseModel(model);
+        assertEquals(model.getDN(), copy.getDN());
+        assertEquals("Smith", copy.getSimpleAttrValue("sn"));
+        model.getEntityAttrs().get("sn").set(0, "Jones");
+        copy.getEntityAttrs().remove("givenName");
+        assertEquals("Smith", copy.getSimpleAttrValue("sn"));
+        assertEquals("Jo", model.getSimpleAttrValue("givenName"));
+    }
+}